@@ -0,0 +1,50 @@
+package antifraud;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cost of deriving a card's limits by folding its whole feedback history, as checkAmount did before the
+ * limits were persisted, against the keyed lookup it does now.
+ */
+@State(Scope.Benchmark)
+public class AmountFoldBenchmark {
+    @Param({"0", "10", "100", "1000", "10000"})
+    public int historyLength;
+
+    private List<Transaction> history;
+    private CardLimit stored;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        var results = TransactionResult.values();
+        history = new ArrayList<>(historyLength);
+        for (int i = 0; i < historyLength; i++) {
+            var t = new Transaction(i + 1, 1 + random.nextInt(2000), "10.0.0.1", "4000008449433403", Region.EAP,
+                    LocalDateTime.of(2022, 1, 1, 0, 0).plusMinutes(i), results[random.nextInt(results.length)]);
+            t.feedback = results[random.nextInt(results.length)];
+            if (t.feedback == t.result) t.feedback = null;
+            history.add(t);
+        }
+        stored = fold();
+    }
+
+    @Benchmark
+    public CardLimit fold() {
+        var limit = new CardLimit("4000008449433403", CardLimit.Policy.DEFAULT);
+        for (var t : history) {
+            limit.applyFeedback(t, CardLimit.Policy.DEFAULT);
+        }
+        return limit;
+    }
+
+    @Benchmark
+    public long lookup() {
+        return stored.allowedAmount + stored.manualAmount;
+    }
+}
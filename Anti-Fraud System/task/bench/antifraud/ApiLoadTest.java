@@ -0,0 +1,487 @@
+package antifraud;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.boot.SpringApplication;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reproducible load test of the REST API. Every round starts the application on a random port against a fresh
+ * in-memory H2 database, creates the users through /api/auth/user, seeds the blocklists, then sends a fixed,
+ * seeded sequence of requests with {@code concurrency} in flight: scoring requests for a skewed card population
+ * (hot cards come back often, usually from their home IP and region, so the correlation and limit rules fire),
+ * history lookups and pages, card summaries, and blocklist additions, deletions and listings. The first
+ * {@code warm-up} requests are not measured.
+ * <p>
+ * Prints request rates and latency percentiles per endpoint and writes them, with the commit and the settings, to
+ * {@code output} as JSON. With several rounds every figure is the median over the rounds. Given a {@code baseline}
+ * written by an earlier run, the figures are compared and the run fails when the rate of an endpoint drops or
+ * its p99 latency grows by more than {@code tolerance}; endpoints with fewer than {@value #MIN_COMPARED} requests
+ * are reported but not judged.
+ * <p>
+ * Run with {@code gradle apiLoadTest}; options are {@code --load.<name>=<value>}: {@code concurrency} (32),
+ * {@code requests} (50000), {@code warm-up} (10000), {@code rounds} (1), {@code seed} (42), {@code cards} (20000),
+ * {@code output} (build/api-load-test.json), {@code baseline} and {@code tolerance} (0.15). Other arguments are
+ * passed to the application, e.g. {@code --antifraud.event-log.enabled=true}.
+ */
+public class ApiLoadTest {
+    private static final Region[] REGIONS = Region.values();
+    private static final int SEEDED_IPS = 1000;
+    private static final int SEEDED_CARDS = 1000;
+    private static final int MIN_COMPARED = 500;
+
+    enum Operation {
+        TRANSACTION(70, "POST /transaction"),
+        CARD_HISTORY(8, "GET /history/{number}"),
+        CARD_SUMMARY(5, "GET /history/{number}/summary"),
+        HISTORY_PAGE(3, "GET /history?limit=100"),
+        SUSPICIOUS_IP_ADD(4, "POST /suspicious-ip"),
+        SUSPICIOUS_IP_DELETE(3, "DELETE /suspicious-ip/{ip}"),
+        SUSPICIOUS_IP_LIST(1, "GET /suspicious-ip"),
+        STOLEN_CARD_ADD(3, "POST /stolencard"),
+        STOLEN_CARD_DELETE(2, "DELETE /stolencard/{number}"),
+        STOLEN_CARD_LIST(1, "GET /stolencard");
+
+        final int weight;
+        final String label;
+
+        Operation(int weight, String label) {
+            this.weight = weight;
+            this.label = label;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        for (var arg : args) {
+            if (arg.startsWith("--load.")) {
+                int eq = arg.indexOf('=');
+                options.put(arg.substring(7, eq), arg.substring(eq + 1));
+            } else {
+                appArgs.add(arg);
+            }
+        }
+        var settings = new Settings(
+                Integer.parseInt(options.getOrDefault("concurrency", "32")),
+                Integer.parseInt(options.getOrDefault("requests", "50000")),
+                Integer.parseInt(options.getOrDefault("warm-up", "10000")),
+                Integer.parseInt(options.getOrDefault("rounds", "1")),
+                Long.parseLong(options.getOrDefault("seed", "42")),
+                Integer.parseInt(options.getOrDefault("cards", "20000")),
+                appArgs);
+        var output = Path.of(options.getOrDefault("output", "build/api-load-test.json"));
+        var baseline = options.get("baseline");
+        double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.15"));
+
+        List<Result> rounds = new ArrayList<>();
+        for (int round = 1; round <= settings.rounds(); round++) {
+            var result = run(settings, round);
+            System.out.printf("Round %d of %d%n", round, settings.rounds());
+            print(result);
+            rounds.add(result);
+        }
+        var result = Result.median(rounds);
+        if (settings.rounds() > 1) {
+            System.out.println("Median");
+            print(result);
+        }
+        var mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        if (output.getParent() != null) Files.createDirectories(output.getParent());
+        mapper.writeValue(output.toFile(), result);
+        System.out.println("Results written to " + output.toAbsolutePath());
+        if (baseline != null && !compare(mapper.readValue(Path.of(baseline).toFile(), Result.class), result, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    private static Result run(Settings settings, int round) throws Exception {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", "0");
+        properties.put("spring.datasource.url", "jdbc:h2:mem:api-load-" + round + ";DB_CLOSE_DELAY=-1");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.jpa.hibernate.ddl-auto", "create");
+        properties.put("spring.jpa.show-sql", "false");
+        properties.put("logging.level.root", "warn");
+        properties.put("antifraud.snapshot.file", "");
+        for (var arg : settings.appArgs()) {
+            int eq = arg.indexOf('=');
+            properties.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        var args = properties.entrySet().stream().map(e -> "--" + e.getKey() + "=" + e.getValue()).toArray(String[]::new);
+
+        var clientThreads = Executors.newFixedThreadPool(8);
+        try (var context = SpringApplication.run(AntiFraudApplication.class, args)) {
+            var base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            var client = HttpClient.newBuilder().executor(clientThreads).version(HttpClient.Version.HTTP_1_1).build();
+            setUp(client, base);
+            var workload = new Workload(base, settings);
+            seed(client, workload);
+
+            var load = new Load(client, workload);
+            load.drive(settings.warmUp(), settings.concurrency(), false);
+            long nanos = load.drive(settings.requests(), settings.concurrency(), true);
+            return load.result(settings, nanos);
+        } finally {
+            clientThreads.shutdownNow();
+        }
+    }
+
+    private static void setUp(HttpClient client, String base) throws Exception {
+        send(client, post(base + "/api/auth/user", null, "{\"name\":\"a\",\"username\":\"load-admin\",\"password\":\"pw\"}"));
+        send(client, post(base + "/api/auth/user", null, "{\"name\":\"m\",\"username\":\"load-merchant\",\"password\":\"pw\"}"));
+        send(client, post(base + "/api/auth/user", null, "{\"name\":\"s\",\"username\":\"load-support\",\"password\":\"pw\"}"));
+        for (var user : List.of("load-merchant", "load-support")) {
+            send(client, put(base + "/api/auth/access", "load-admin", "{\"username\":\"" + user + "\",\"operation\":\"UNLOCK\"}"));
+        }
+        send(client, put(base + "/api/auth/role", "load-admin", "{\"username\":\"load-support\",\"role\":\"SUPPORT\"}"));
+    }
+
+    private static void seed(HttpClient client, Workload workload) throws Exception {
+        var ips = new StringBuilder("ip\n");
+        for (int i = 0; i < SEEDED_IPS; i++) ips.append(Workload.blockedIp(i)).append('\n');
+        send(client, HttpRequest.newBuilder(URI.create(workload.base + "/api/antifraud/suspicious-ip/bulk"))
+                .header("Content-Type", "text/csv").header("Authorization", basic("load-support"))
+                .POST(HttpRequest.BodyPublishers.ofString(ips.toString())).build());
+        var cards = new StringBuilder("number\n");
+        for (int i = 0; i < SEEDED_CARDS; i++) cards.append(workload.stolenCard(i)).append('\n');
+        send(client, HttpRequest.newBuilder(URI.create(workload.base + "/api/antifraud/stolencard/bulk"))
+                .header("Content-Type", "text/csv").header("Authorization", basic("load-support"))
+                .POST(HttpRequest.BodyPublishers.ofString(cards.toString())).build());
+    }
+
+    private static void send(HttpClient client, HttpRequest request) throws Exception {
+        var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() >= 300) throw new IllegalStateException(request.uri() + " answered " + response.statusCode());
+    }
+
+    private static HttpRequest post(String uri, String user, String body) {
+        var builder = HttpRequest.newBuilder(URI.create(uri)).header("Content-Type", "application/json");
+        if (user != null) builder.header("Authorization", basic(user));
+        return builder.POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private static HttpRequest put(String uri, String user, String body) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Content-Type", "application/json").header("Authorization", basic(user))
+                .PUT(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private static HttpRequest get(String uri, String user) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Authorization", basic(user)).GET().build();
+    }
+
+    private static HttpRequest delete(String uri, String user) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Authorization", basic(user)).DELETE().build();
+    }
+
+    private static String basic(String user) {
+        return "Basic " + Base64.getEncoder().encodeToString((user + ":pw").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void print(Result result) {
+        System.out.printf("%-30s %8s %10s %9s %9s %9s %9s %9s %7s%n", "", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        for (var stat : result.operations()) printStat(stat);
+        printStat(result.total());
+        System.out.printf("Verdicts: %s%n", result.verdicts());
+    }
+
+    private static void printStat(Stat s) {
+        System.out.printf("%-30s %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n",
+                s.operation(), s.requests(), s.rate(), s.p50(), s.p90(), s.p99(), s.p999(), s.max(), s.errors());
+    }
+
+    /**
+     * @return whether no endpoint regressed by more than {@code tolerance}
+     */
+    private static boolean compare(Result baseline, Result current, double tolerance) {
+        System.out.printf("Compared with %s (%s):%n", baseline.commit(), baseline.settings().equals(current.settings()) ? "same settings" : "DIFFERENT settings");
+        System.out.printf("%-30s %10s %10s %8s %9s %9s %8s%n", "", "base req/s", "req/s", "change", "base p99", "p99", "change");
+        boolean passed = true;
+        List<Stat> currentStats = new ArrayList<>(current.operations());
+        currentStats.add(current.total());
+        for (var stat : currentStats) {
+            var base = baseline.operations().stream().filter(b -> b.operation().equals(stat.operation())).findFirst()
+                    .orElse(baseline.total().operation().equals(stat.operation()) ? baseline.total() : null);
+            if (base == null) continue;
+            double rate = stat.rate() / base.rate() - 1;
+            double p99 = stat.p99() / base.p99() - 1;
+            boolean judged = stat.requests() >= MIN_COMPARED && base.requests() >= MIN_COMPARED;
+            boolean regressed = judged && (rate < -tolerance || p99 > tolerance);
+            passed &= !regressed;
+            System.out.printf("%-30s %10.1f %10.1f %+7.1f%% %9.2f %9.2f %+7.1f%% %s%n", stat.operation(), base.rate(), stat.rate(),
+                    rate * 100, base.p99(), stat.p99(), p99 * 100, regressed ? "REGRESSED" : judged ? "" : "(too few requests)");
+        }
+        System.out.println(passed ? "No regression beyond " + tolerance * 100 + "%" : "Regression beyond " + tolerance * 100 + "%");
+        return passed;
+    }
+
+    record Settings(int concurrency, int requests, int warmUp, int rounds, long seed, int cards, List<String> appArgs) {
+    }
+
+    record Stat(String operation, long requests, long errors, double rate, double p50, double p90, double p99, double p999, double max) {
+        static Stat of(String operation, long[] nanos, long errors, long elapsedNanos) {
+            Arrays.sort(nanos);
+            return new Stat(operation, nanos.length, errors, nanos.length / (elapsedNanos / 1e9),
+                    percentile(nanos, .5), percentile(nanos, .9), percentile(nanos, .99), percentile(nanos, .999),
+                    nanos.length == 0 ? 0 : nanos[nanos.length - 1] / 1e6);
+        }
+
+        static Stat median(List<Stat> stats) {
+            var first = stats.get(0);
+            return new Stat(first.operation(), first.requests(), (long) median(stats, Stat::errors), median(stats, Stat::rate),
+                    median(stats, Stat::p50), median(stats, Stat::p90), median(stats, Stat::p99), median(stats, Stat::p999), median(stats, Stat::max));
+        }
+
+        private static double median(List<Stat> stats, ToDoubleFunction<Stat> value) {
+            double[] values = stats.stream().mapToDouble(value).sorted().toArray();
+            return values[values.length / 2];
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * p))] / 1e6;
+        }
+    }
+
+    record Result(String commit, String java, int processors, Settings settings, List<Stat> operations, Stat total,
+                  Map<String, Long> verdicts) {
+        static Result median(List<Result> rounds) {
+            var first = rounds.get(0);
+            List<Stat> operations = new ArrayList<>();
+            for (int i = 0; i < first.operations().size(); i++) {
+                int op = i;
+                operations.add(Stat.median(rounds.stream().map(r -> r.operations().get(op)).toList()));
+            }
+            return new Result(first.commit(), first.java(), first.processors(), first.settings(), operations,
+                    Stat.median(rounds.stream().map(Result::total).toList()), first.verdicts());
+        }
+    }
+
+    /**
+     * The seeded request sequence. Cards are drawn with a cubic skew towards low indices; each card has a home IP
+     * and region that most of its transactions use. Blocklist deletions and lookups of a card only pick entries
+     * added or scored a few hundred requests earlier, so they find what they look for.
+     */
+    static class Workload {
+        private static final int LAG = 1000;
+        private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+        final String base;
+        private final Settings settings;
+        private final Random random;
+        private final int totalWeight = Arrays.stream(Operation.values()).mapToInt(o -> o.weight).sum();
+        private final ArrayDeque<long[]> scoredCards = new ArrayDeque<>();
+        private final ArrayDeque<long[]> addedIps = new ArrayDeque<>();
+        private final ArrayDeque<long[]> addedCards = new ArrayDeque<>();
+        private final List<Integer> knownCards = new ArrayList<>();
+        private final boolean[] known;
+        private long sequence;
+        private long seconds;
+        private int nextIp;
+        private int nextCard;
+
+        Workload(String base, Settings settings) {
+            this.base = base;
+            this.settings = settings;
+            this.random = new Random(settings.seed());
+            this.known = new boolean[settings.cards()];
+        }
+
+        static String blockedIp(int n) {
+            return "172.%d.%d.%d".formatted(16 + (n >>> 16 & 0x0f), n >>> 8 & 0xff, n & 0xff);
+        }
+
+        String stolenCard(int n) {
+            return IndexBenchmark.cardNumber(settings.cards() + n);
+        }
+
+        Request next() {
+            sequence++;
+            promote(scoredCards, id -> {
+                if (!known[id]) {
+                    known[id] = true;
+                    knownCards.add(id);
+                }
+            });
+            int pick = random.nextInt(totalWeight);
+            var operation = Operation.TRANSACTION;
+            for (var candidate : Operation.values()) {
+                if (pick < candidate.weight) {
+                    operation = candidate;
+                    break;
+                }
+                pick -= candidate.weight;
+            }
+            return switch (operation) {
+                case CARD_HISTORY, CARD_SUMMARY -> {
+                    if (knownCards.isEmpty()) yield transaction();
+                    var number = IndexBenchmark.cardNumber(knownCards.get(random.nextInt(knownCards.size())));
+                    yield operation == Operation.CARD_HISTORY
+                            ? new Request(operation, get(base + "/api/antifraud/history/" + number + "?limit=20", "load-support"))
+                            : new Request(operation, get(base + "/api/antifraud/history/" + number + "/summary", "load-support"));
+                }
+                case HISTORY_PAGE -> new Request(operation, get(base + "/api/antifraud/history?limit=100&after="
+                        + random.nextInt((int) Math.min(Integer.MAX_VALUE, sequence)), "load-support"));
+                case SUSPICIOUS_IP_ADD -> {
+                    int n = SEEDED_IPS + nextIp++;
+                    addedIps.add(new long[]{sequence, n});
+                    yield new Request(operation, post(base + "/api/antifraud/suspicious-ip", "load-support", "{\"ip\":\"" + blockedIp(n) + "\"}"));
+                }
+                case SUSPICIOUS_IP_DELETE -> {
+                    var added = addedIps.peek();
+                    if (added == null || added[0] > sequence - LAG) yield transaction();
+                    addedIps.poll();
+                    yield new Request(operation, delete(base + "/api/antifraud/suspicious-ip/" + blockedIp((int) added[1]), "load-support"));
+                }
+                case SUSPICIOUS_IP_LIST -> new Request(operation, get(base + "/api/antifraud/suspicious-ip", "load-support"));
+                case STOLEN_CARD_ADD -> {
+                    int n = SEEDED_CARDS + nextCard++;
+                    addedCards.add(new long[]{sequence, n});
+                    yield new Request(operation, post(base + "/api/antifraud/stolencard", "load-support", "{\"number\":\"" + stolenCard(n) + "\"}"));
+                }
+                case STOLEN_CARD_DELETE -> {
+                    var added = addedCards.peek();
+                    if (added == null || added[0] > sequence - LAG) yield transaction();
+                    addedCards.poll();
+                    yield new Request(operation, delete(base + "/api/antifraud/stolencard/" + stolenCard((int) added[1]), "load-support"));
+                }
+                case STOLEN_CARD_LIST -> new Request(operation, get(base + "/api/antifraud/stolencard", "load-support"));
+                case TRANSACTION -> transaction();
+            };
+        }
+
+        private Request transaction() {
+            seconds += 1 + random.nextInt(3);
+            double u = random.nextDouble();
+            int card = (int) (settings.cards() * u * u * u);
+            var home = new Random(card);
+            String ip = "10.%d.%d.%d".formatted(home.nextInt(256), home.nextInt(256), 1 + home.nextInt(254));
+            var region = REGIONS[home.nextInt(REGIONS.length)];
+            String number = IndexBenchmark.cardNumber(card);
+            double kind = random.nextDouble();
+            if (kind < 0.01) ip = blockedIp(random.nextInt(SEEDED_IPS));
+            else if (kind < 0.015) number = stolenCard(random.nextInt(SEEDED_CARDS));
+            else if (kind < 0.10) ip = "10.%d.%d.%d".formatted(random.nextInt(256), random.nextInt(256), 1 + random.nextInt(254));
+            if (random.nextDouble() < 0.05) region = REGIONS[random.nextInt(REGIONS.length)];
+            long amount = Math.max(1, Math.round(Math.exp(4.5 + 1.2 * random.nextGaussian())));
+            if (number.equals(IndexBenchmark.cardNumber(card))) scoredCards.add(new long[]{sequence, card});
+            var body = "{\"amount\":%d,\"ip\":\"%s\",\"number\":\"%s\",\"region\":\"%s\",\"date\":\"%s\"}".formatted(
+                    amount, ip, number, region, START.plusSeconds(seconds));
+            return new Request(Operation.TRANSACTION, post(base + "/api/antifraud/transaction", "load-merchant", body));
+        }
+
+        private void promote(ArrayDeque<long[]> queue, IntConsumer action) {
+            while (!queue.isEmpty() && queue.peek()[0] <= sequence - LAG) action.accept((int) queue.poll()[1]);
+        }
+    }
+
+    record Request(Operation operation, HttpRequest http) {
+    }
+
+    private static class Load {
+        private final HttpClient client;
+        private final Workload workload;
+        private final long[][] samples = new long[Operation.values().length][];
+        private final AtomicInteger[] sampled = new AtomicInteger[Operation.values().length];
+        private final LongAdder[] errors = new LongAdder[Operation.values().length];
+        private final Map<String, LongAdder> verdicts = new ConcurrentHashMap<>();
+
+        Load(HttpClient client, Workload workload) {
+            this.client = client;
+            this.workload = workload;
+        }
+
+        /**
+         * Returns the elapsed time including the requests still in flight at the end.
+         */
+        long drive(int requests, int concurrency, boolean record) throws InterruptedException {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = new long[requests];
+                sampled[i] = new AtomicInteger();
+                errors[i] = new LongAdder();
+            }
+            verdicts.clear();
+            var inFlight = new Semaphore(concurrency);
+            long begin = System.nanoTime();
+            for (int n = 0; n < requests; n++) {
+                var request = workload.next();
+                int op = request.operation().ordinal();
+                inFlight.acquire();
+                long sent = System.nanoTime();
+                client.sendAsync(request.http(), HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, failure) -> {
+                            long nanos = System.nanoTime() - sent;
+                            if (record) {
+                                if (failure != null || response.statusCode() != 200) errors[op].increment();
+                                else if (request.operation() == Operation.TRANSACTION) verdict(response.body());
+                                samples[op][sampled[op].getAndIncrement()] = nanos;
+                            }
+                            inFlight.release();
+                        });
+            }
+            inFlight.acquire(concurrency);
+            return System.nanoTime() - begin;
+        }
+
+        private void verdict(String body) {
+            int start = body.indexOf("\"result\"");
+            if (start < 0) return;
+            int open = body.indexOf('"', body.indexOf(':', start)) + 1;
+            verdicts.computeIfAbsent(body.substring(open, body.indexOf('"', open)), v -> new LongAdder()).increment();
+        }
+
+        Result result(Settings settings, long elapsedNanos) {
+            List<Stat> operations = new ArrayList<>();
+            long[] all = new long[0];
+            long allErrors = 0;
+            for (var operation : Operation.values()) {
+                int op = operation.ordinal();
+                var nanos = Arrays.copyOf(samples[op], sampled[op].get());
+                operations.add(Stat.of(operation.label, nanos.clone(), errors[op].sum(), elapsedNanos));
+                int offset = all.length;
+                all = Arrays.copyOf(all, offset + nanos.length);
+                System.arraycopy(nanos, 0, all, offset, nanos.length);
+                allErrors += errors[op].sum();
+            }
+            Map<String, Long> counts = new TreeMap<>();
+            verdicts.forEach((verdict, count) -> counts.put(verdict, count.sum()));
+            return new Result(commit(), Runtime.version().toString(), Runtime.getRuntime().availableProcessors(), settings,
+                    operations, Stat.of("total", all, allErrors, elapsedNanos), counts);
+        }
+
+        private static String commit() {
+            try {
+                var process = new ProcessBuilder("git", "describe", "--always", "--dirty").redirectErrorStream(true).start();
+                var out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+                return process.waitFor() == 0 ? out : "unknown";
+            } catch (IOException | InterruptedException e) {
+                return "unknown";
+            }
+        }
+    }
+}
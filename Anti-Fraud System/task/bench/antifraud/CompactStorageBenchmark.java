@@ -0,0 +1,128 @@
+package antifraud;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the default string layout of the transaction table with the layout of the {@code compact} profile:
+ * database file size with the per-card indexes, and latency of the per-card scans done while scoring.
+ * <p>
+ * Run with {@code gradle compactStorageBenchmark}; arguments: {@code rows cards lookups} (defaults 1000000 20000 2000).
+ */
+public class CompactStorageBenchmark {
+    private static final LocalDateTime START = LocalDateTime.of(2022, 1, 1, 0, 0);
+    private static final Region[] REGIONS = Region.values();
+
+    public static void main(String[] args) throws SQLException, IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int cards = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        var directory = Files.createTempDirectory("compact-storage-benchmark");
+        for (var compact : new boolean[]{false, true}) {
+            var name = compact ? "compact" : "string";
+            var url = "jdbc:h2:file:" + directory.resolve(name).toAbsolutePath();
+            try (var connection = DriverManager.getConnection(url)) {
+                createSchema(connection, compact);
+                load(connection, rows, cards, compact);
+                try (var statement = connection.createStatement()) {
+                    statement.execute("checkpoint sync");
+                }
+                System.out.printf("%s layout:%n", name);
+                System.out.printf("  %-22s %10.1f MB%n", "file size", Files.size(directory.resolve(name + ".mv.db")) / 1e6);
+                scan(connection, rows, cards, lookups, compact);
+            }
+        }
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private static void createSchema(Connection connection, boolean compact) throws SQLException {
+        var text = "varchar(255)";
+        try (var statement = connection.createStatement()) {
+            statement.execute("""
+                    create table "transaction" ("id" integer primary key, "amount" bigint, "ip" %s,
+                    "number" %s, "region" %s, "date" timestamp(6), "result" %s, "feedback" %s)"""
+                    .formatted(compact ? "integer" : text, compact ? "bigint" : text, compact ? "tinyint" : text,
+                            compact ? "tinyint" : text, compact ? "tinyint" : text));
+            statement.execute("create index \"transaction_number_date_idx\" on \"transaction\" (\"number\", \"date\")");
+            statement.execute("create index \"transaction_number_id_idx\" on \"transaction\" (\"number\", \"id\")");
+        }
+    }
+
+    private static void load(Connection connection, int rows, int cards, boolean compact) throws SQLException {
+        var random = new Random(42);
+        connection.setAutoCommit(false);
+        try (var insert = connection.prepareStatement(
+                "insert into \"transaction\" values (?, ?, ?, ?, ?, ?, ?, null)")) {
+            for (int id = 1; id <= rows; id++) {
+                var ip = "10.%d.%d.%d".formatted(random.nextInt(4), random.nextInt(256), random.nextInt(256));
+                var number = IndexBenchmark.cardNumber(random.nextInt(cards));
+                var region = REGIONS[random.nextInt(REGIONS.length)];
+                insert.setInt(1, id);
+                insert.setLong(2, 1 + random.nextInt(2000));
+                insert.setObject(3, compact ? (Object) IPv4.pack(ip) : ip);
+                insert.setObject(4, compact ? (Object) CardNumber.pack(number) : number);
+                insert.setObject(5, compact ? (Object) region.ordinal() : region.name());
+                insert.setTimestamp(6, Timestamp.valueOf(START.plusSeconds(id * 30L)));
+                insert.setObject(7, compact ? (Object) TransactionResult.ALLOWED.ordinal() : TransactionResult.ALLOWED.name());
+                insert.addBatch();
+                if (id % 10_000 == 0) insert.executeBatch();
+            }
+            insert.executeBatch();
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    private static void scan(Connection connection, int rows, int cards, int lookups, boolean compact) throws SQLException {
+        try (var history = connection.prepareStatement("select * from \"transaction\" where \"number\" = ? order by \"id\"");
+             var regions = connection.prepareStatement("""
+                     select distinct "region" from "transaction"
+                     where "region" <> ? and "date" between ? and ? and "number" = ?""")) {
+            var random = new Random(7);
+            long[] historyNanos = new long[lookups];
+            long[] regionNanos = new long[lookups];
+            for (int i = -lookups / 10; i < lookups; i++) {
+                var number = IndexBenchmark.cardNumber(random.nextInt(cards));
+                var date = START.plusSeconds(random.nextInt(rows) * 30L);
+                var region = REGIONS[random.nextInt(REGIONS.length)];
+
+                history.setObject(1, compact ? (Object) CardNumber.pack(number) : number);
+                long start = System.nanoTime();
+                try (var result = history.executeQuery()) {
+                    while (result.next()) result.getObject(3);
+                }
+                if (i >= 0) historyNanos[i] = System.nanoTime() - start;
+
+                regions.setObject(1, compact ? (Object) region.ordinal() : region.name());
+                regions.setTimestamp(2, Timestamp.valueOf(date.minusHours(1)));
+                regions.setTimestamp(3, Timestamp.valueOf(date));
+                regions.setObject(4, compact ? (Object) CardNumber.pack(number) : number);
+                start = System.nanoTime();
+                try (var result = regions.executeQuery()) {
+                    while (result.next()) result.getObject(1);
+                }
+                if (i >= 0) regionNanos[i] = System.nanoTime() - start;
+            }
+            report("history-by-number", historyNanos);
+            report("region-correlation", regionNanos);
+        }
+    }
+
+    private static void report(String name, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("  %-22s p50 %10.1f us   p99 %10.1f us%n",
+                name, nanos[nanos.length / 2] / 1000.0, nanos[nanos.length * 99 / 100] / 1000.0);
+    }
+}
@@ -0,0 +1,167 @@
+package antifraud;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the lookups issued while scoring a transaction against a large in-memory H2 database, first on
+ * the bare tables and then after creating the indexes declared on {@link Transaction}, {@link Card} and {@link IP}.
+ * <p>
+ * Run with {@code gradle indexBenchmark}; arguments: {@code rows cards lookups} (defaults 1000000 20000 2000).
+ * The data set and the lookup keys come from a fixed seed, so runs are comparable.
+ */
+public class IndexBenchmark {
+    private static final LocalDateTime START = LocalDateTime.of(2022, 1, 1, 0, 0);
+    private static final String[] REGIONS = {"EAP", "ECA", "HIC", "LAC", "MENA", "SA", "SSA"};
+
+    public static void main(String[] args) throws SQLException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int cards = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:index-benchmark;DB_CLOSE_DELAY=-1")) {
+            createSchema(connection);
+            System.out.printf("Loading %d transactions for %d cards...%n", rows, cards);
+            load(connection, rows, cards);
+
+            System.out.println("Without indexes:");
+            run(connection, rows, cards, lookups);
+
+            try (var statement = connection.createStatement()) {
+                statement.execute("create index \"transaction_number_date_idx\" on \"transaction\" (\"number\", \"date\")");
+                statement.execute("create index \"transaction_number_id_idx\" on \"transaction\" (\"number\", \"id\")");
+                statement.execute("create index \"transaction_date_idx\" on \"transaction\" (\"date\")");
+                statement.execute("alter table \"card\" add constraint \"card_number_uk\" unique (\"number\")");
+                statement.execute("alter table \"ip\" add constraint \"ip_ip_uk\" unique (\"ip\")");
+            }
+            System.out.println("With indexes:");
+            run(connection, rows, cards, lookups);
+        }
+    }
+
+    private static void createSchema(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("""
+                    create table "transaction" ("id" integer primary key, "amount" bigint, "ip" varchar(255),
+                    "number" varchar(255), "region" varchar(255), "date" timestamp(6), "result" varchar(255),
+                    "feedback" varchar(255))""");
+            statement.execute("create table \"card\" (\"id\" integer primary key, \"number\" varchar(255))");
+            statement.execute("create table \"ip\" (\"id\" integer primary key, \"ip\" varchar(255))");
+        }
+    }
+
+    private static void load(Connection connection, int rows, int cards) throws SQLException {
+        var random = new Random(42);
+        connection.setAutoCommit(false);
+        try (var insert = connection.prepareStatement(
+                "insert into \"transaction\" values (?, ?, ?, ?, ?, ?, 'ALLOWED', null)")) {
+            for (int id = 1; id <= rows; id++) {
+                insert.setInt(1, id);
+                insert.setLong(2, 1 + random.nextInt(2000));
+                insert.setString(3, ip(random.nextInt(5000)));
+                insert.setString(4, cardNumber(random.nextInt(cards)));
+                insert.setString(5, REGIONS[random.nextInt(REGIONS.length)]);
+                insert.setTimestamp(6, Timestamp.valueOf(START.plusSeconds(id * 30L)));
+                insert.addBatch();
+                if (id % 10_000 == 0) insert.executeBatch();
+            }
+            insert.executeBatch();
+        }
+        try (var card = connection.prepareStatement("insert into \"card\" values (?, ?)");
+             var ip = connection.prepareStatement("insert into \"ip\" values (?, ?)")) {
+            for (int id = 1; id <= 50_000; id++) {
+                card.setInt(1, id);
+                card.setString(2, cardNumber(cards + id));
+                card.addBatch();
+                ip.setInt(1, id);
+                ip.setString(2, ip(100_000 + id));
+                ip.addBatch();
+            }
+            card.executeBatch();
+            ip.executeBatch();
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    private static void run(Connection connection, int rows, int cards, int lookups) throws SQLException {
+        try (var regions = connection.prepareStatement("""
+                select distinct "region" from "transaction"
+                where "region" <> ? and "date" between ? and ? and "number" = ?""");
+             var history = connection.prepareStatement(
+                     "select * from \"transaction\" where \"number\" = ? order by \"id\"");
+             var card = connection.prepareStatement("select count(*) from \"card\" where \"number\" = ?");
+             var ip = connection.prepareStatement("select count(*) from \"ip\" where \"ip\" = ?")) {
+            measure("region-correlation", lookups, rows, cards, (random, date) -> {
+                regions.setString(1, REGIONS[random.nextInt(REGIONS.length)]);
+                regions.setTimestamp(2, Timestamp.valueOf(date.minusHours(1)));
+                regions.setTimestamp(3, Timestamp.valueOf(date));
+                regions.setString(4, cardNumber(random.nextInt(cards)));
+                return regions;
+            });
+            measure("history-by-number", lookups, rows, cards, (random, date) -> {
+                history.setString(1, cardNumber(random.nextInt(cards)));
+                return history;
+            });
+            measure("stolencard-exists", lookups, rows, cards, (random, date) -> {
+                card.setString(1, cardNumber(cards + random.nextInt(100_000)));
+                return card;
+            });
+            measure("suspicious-ip-exists", lookups, rows, cards, (random, date) -> {
+                ip.setString(1, ip(100_000 + random.nextInt(100_000)));
+                return ip;
+            });
+        }
+    }
+
+    private static void measure(String name, int lookups, int rows, int cards, Query query) throws SQLException {
+        var random = new Random(7);
+        long[] nanos = new long[lookups];
+        for (int i = -lookups / 10; i < lookups; i++) {
+            var date = START.plusSeconds(random.nextInt(rows) * 30L);
+            var statement = query.prepare(random, date);
+            long start = System.nanoTime();
+            try (var result = statement.executeQuery()) {
+                while (result.next()) {
+                    result.getObject(1);
+                }
+            }
+            if (i >= 0) nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("  %-22s p50 %10.1f us   p99 %10.1f us%n",
+                name, nanos[lookups / 2] / 1000.0, nanos[lookups * 99 / 100] / 1000.0);
+    }
+
+    private static String ip(int n) {
+        return "%d.%d.%d.%d".formatted(10 + (n >>> 24 & 0x3f), n >>> 16 & 0xff, n >>> 8 & 0xff, n & 0xff);
+    }
+
+    /**
+     * A 16 digit number with a valid Luhn check digit, distinct for every {@code n}.
+     */
+    static String cardNumber(int n) {
+        var body = "400000%09d".formatted(n);
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            int digit = body.charAt(body.length() - 1 - i) - '0';
+            if (i % 2 == 0) {
+                digit *= 2;
+                if (digit > 9) digit -= 9;
+            }
+            sum += digit;
+        }
+        return body + (10 - sum % 10) % 10;
+    }
+
+    @FunctionalInterface
+    private interface Query {
+        PreparedStatement prepare(Random random, LocalDateTime date) throws SQLException;
+    }
+}
@@ -0,0 +1,75 @@
+package antifraud;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * Scores transactions through the real beans against an in-memory H2 database, without HTTP.
+ * {@code score} only runs the check pipeline, {@code handle} also persists the transaction
+ * and records it in the correlation window, like POST /api/antifraud/transaction.
+ */
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final Region[] REGIONS = Region.values();
+
+    @Param({"1000"})
+    public int cards;
+
+    private ConfigurableApplicationContext context;
+    private TransactionController controller;
+    private CheckPipeline pipeline;
+    private TransactionController.TransactionRequest[] requests;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        context = SpringApplication.run(AntiFraudApplication.class,
+                "--spring.main.web-application-type=none",
+                "--spring.datasource.url=jdbc:h2:mem:pipeline-benchmark;DB_CLOSE_DELAY=-1",
+                "--spring.datasource.username=sa",
+                "--spring.jpa.hibernate.ddl-auto=create",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.root=warn");
+        controller = context.getBean(TransactionController.class);
+        pipeline = context.getBean(CheckPipeline.class);
+
+        var random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            controller.addIP(new TransactionController.IPRequest("10.1.%d.%d".formatted(i / 256, i % 256)));
+            controller.addCard(new TransactionController.CardRequest(IndexBenchmark.cardNumber(cards + i)));
+        }
+        requests = new TransactionController.TransactionRequest[4096];
+        var date = LocalDateTime.of(2022, 1, 1, 0, 0);
+        for (int i = 0; i < requests.length; i++) {
+            date = date.plusSeconds(random.nextInt(60));
+            requests[i] = new TransactionController.TransactionRequest(
+                    1 + random.nextInt(2000),
+                    "10.%d.%d.%d".formatted(random.nextInt(3), random.nextInt(4), random.nextInt(256)),
+                    IndexBenchmark.cardNumber(random.nextInt(cards + 100)),
+                    REGIONS[random.nextInt(REGIONS.length)],
+                    date);
+        }
+        for (var request : requests) {
+            controller.handle(request);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public CheckPipeline.Verdict score() {
+        return pipeline.score(requests[next++ & 4095]);
+    }
+
+    @Benchmark
+    public TransactionController.TransactionResultResponse handle() throws Exception {
+        return controller.handle(requests[next++ & 4095]);
+    }
+}
@@ -0,0 +1,32 @@
+package antifraud;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+/**
+ * Longest-prefix-match lookups of random addresses against {@code prefixes} random /16 to /32 ranges.
+ */
+@State(Scope.Benchmark)
+public class PrefixTrieBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int prefixes;
+
+    private PrefixTrie trie;
+    private int[] addresses;
+    private int next;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        trie = new PrefixTrie();
+        for (int i = 0; i < prefixes; i++) trie.add(random.nextInt(), 16 + random.nextInt(17));
+        addresses = new int[1 << 16];
+        for (int i = 0; i < addresses.length; i++) addresses[i] = random.nextInt();
+    }
+
+    @Benchmark
+    public int longestMatch() {
+        return trie.longestMatch(addresses[next++ & 0xffff]);
+    }
+}
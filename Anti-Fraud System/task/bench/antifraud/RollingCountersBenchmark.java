@@ -0,0 +1,41 @@
+package antifraud;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Recording a transaction into a one-hour {@link RollingCounters.Window} and reading the window of the next one,
+ * for {@code keys} cards with a transaction every millisecond.
+ */
+@State(Scope.Benchmark)
+public class RollingCountersBenchmark {
+    @Param({"1000", "100000"})
+    public int keys;
+
+    @Param({"30", "120"})
+    public int buckets;
+
+    private RollingCounters.Window window;
+    private long[] cards;
+    private long date;
+    private int next;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        window = new RollingCounters.Window(Duration.ofHours(1), buckets, Long.MIN_VALUE);
+        cards = new long[1 << 16];
+        for (int i = 0; i < cards.length; i++) cards[i] = random.nextInt(keys);
+        for (int i = 0; i < keys; i++) window.add(i, date, 1, 100);
+    }
+
+    @Benchmark
+    public int recordAndRead() {
+        long card = cards[next++ & 0xffff];
+        date += 1_000_000;
+        window.add(card, date, 1, 100);
+        return window.totals(card, date + 1).orElseThrow().count();
+    }
+}
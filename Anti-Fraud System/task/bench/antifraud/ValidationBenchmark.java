@@ -0,0 +1,38 @@
+package antifraud;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+@State(Scope.Benchmark)
+public class ValidationBenchmark {
+    private String[] numbers;
+    private String[] ips;
+    private int next;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        numbers = new String[1024];
+        ips = new String[1024];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = IndexBenchmark.cardNumber(random.nextInt(1_000_000));
+            ips[i] = "%d.%d.%d.%d".formatted(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+        }
+    }
+
+    @Benchmark
+    public boolean luhn() {
+        return Card.IsValidLuhn(numbers[next++ & 1023]);
+    }
+
+    @Benchmark
+    public boolean ipVerify() {
+        return IP.verify(ips[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int ipPack() {
+        return IPv4.pack(ips[next++ & 1023]);
+    }
+}
@@ -0,0 +1,395 @@
+package antifraud;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-process copy of the suspicious IP and stolen card tables. Loaded once at startup, by the
+ * {@link StateSnapshot} from its snapshot when the row count and highest id still match the table and from
+ * the table otherwise, and kept in sync by the blocklist endpoints in {@link TransactionController}.
+ * Suspicious IPs may be CIDR ranges and are matched by longest prefix in a {@link PrefixTrie}.
+ * <p>
+ * Stolen cards are checked against a {@link CuckooFilter} first; only filter hits go on to the exact check.
+ * The exact set is kept in memory while it and the filter fit in {@code antifraud.blocklist.card-memory-budget},
+ * beyond that the exact check asks the database.
+ */
+@Component
+class BlocklistCache {
+    private static final Logger log = LoggerFactory.getLogger(BlocklistCache.class);
+    private final IpRepository ipRepository;
+    private final CardRepository cardRepository;
+    private final StampedLock lock = new StampedLock();
+    private PrefixTrie ips = new PrefixTrie();
+    private final int fingerprintBits;
+    private final long memoryBudget;
+    private CuckooFilter cardFilter = new CuckooFilter(1, 4);
+    /** {@code null} when the exact check goes to the database. */
+    private LongHashSet cards;
+    private final Counter ipHits;
+    private final Counter ipMisses;
+    private final Counter cardHits;
+    private final Counter cardMisses;
+    private final Counter filterNegatives;
+    private final Counter filterFalsePositives;
+
+    BlocklistCache(IpRepository ipRepository, CardRepository cardRepository, MeterRegistry registry,
+                   @Value("${antifraud.blocklist.card-filter.false-positive-rate:0.001}") double falsePositiveRate,
+                   @Value("${antifraud.blocklist.card-memory-budget:64MB}") DataSize memoryBudget) {
+        this.ipRepository = ipRepository;
+        this.cardRepository = cardRepository;
+        this.fingerprintBits = CuckooFilter.fingerprintBits(falsePositiveRate);
+        this.memoryBudget = memoryBudget.toBytes();
+        ipHits = lookups(registry, "ip", "hit");
+        ipMisses = lookups(registry, "ip", "miss");
+        cardHits = lookups(registry, "card", "hit");
+        cardMisses = lookups(registry, "card", "miss");
+        Gauge.builder("antifraud.blocklist.size", this, c -> c.size(false)).tag("list", "ip").register(registry);
+        Gauge.builder("antifraud.blocklist.size", this, c -> c.size(true)).tag("list", "card").register(registry);
+        filterNegatives = Counter.builder("antifraud.blocklist.card-filter").tag("result", "negative").register(registry);
+        filterFalsePositives = Counter.builder("antifraud.blocklist.card-filter").tag("result", "false-positive").register(registry);
+        Gauge.builder("antifraud.blocklist.card-filter.bytes", this, c -> c.cardFilter.bytes()).register(registry);
+    }
+
+    private static Counter lookups(MeterRegistry registry, String list, String result) {
+        return Counter.builder("antifraud.blocklist.lookups").tag("list", list).tag("result", result).register(registry);
+    }
+
+    void loadIps() {
+        long stamp = lock.writeLock();
+        try {
+            ips.clear();
+            ipRepository.findAll().forEach(ip -> add(ips, ip.ip));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void loadCards() {
+        long stamp = lock.writeLock();
+        try {
+            loadCards(null, null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Builds whatever the snapshot did not provide from the table: the filter if {@code filter} is null,
+     * the exact set if it fits the budget and {@code exactCards} is null.
+     */
+    private void loadCards(CuckooFilter filter, LongHashSet exactCards) {
+        long count = cardRepository.count();
+        int capacity = capacity(count);
+        boolean exact = CuckooFilter.bytes(capacity) + LongHashSet.bytes(count) <= memoryBudget;
+        cards = exact ? exactCards != null ? exactCards : new LongHashSet() : null;
+        if (filter == null || exact && exactCards == null) {
+            var rebuilt = filter == null ? new CuckooFilter(capacity, fingerprintBits) : null;
+            for (var card : cardRepository.findAllBy()) {
+                long key = CardNumber.pack(card.number());
+                if (key == CardNumber.INVALID) continue;
+                if (exact) cards.add(key);
+                if (rebuilt != null && !rebuilt.add(key)) throw new IllegalStateException("Cuckoo filter sized for " + capacity + " cards is full");
+            }
+            if (rebuilt != null) filter = rebuilt;
+        }
+        cardFilter = filter;
+        log.info("{} stolen cards behind a {} KB cuckoo filter with {} bit fingerprints, exact check in {}",
+                count, filter.bytes() / 1024, filter.fingerprintBits(), exact ? "memory" : "the database");
+    }
+
+    /**
+     * Room for as many cards again before the filter has to be rebuilt.
+     */
+    private static int capacity(long count) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1024, 2 * count));
+    }
+
+    /**
+     * Rebuilds a full filter twice as large, from the exact set if it is in memory and from the table
+     * otherwise, which then already includes the card that did not fit.
+     */
+    private void growFilter() {
+        log.info("Card filter is full at {} cards, rebuilding", cardFilter.size());
+        if (cards == null) {
+            loadCards(null, null);
+            return;
+        }
+        var filter = new CuckooFilter(capacity(cards.size()), fingerprintBits);
+        cards.forEach(key -> {
+            if (!filter.add(key)) throw new IllegalStateException("Cuckoo filter sized for " + 2 * cards.size() + " cards is full");
+        });
+        cardFilter = filter;
+    }
+
+    /**
+     * Writes the IPs with the table's row count and highest id, see {@link #restoreIps}. A count that does not
+     * match the cache, because an IP is stored but not yet added, is written as -1 so the section is not used.
+     */
+    void writeIps(DataOutputStream out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            long count = ipRepository.count();
+            out.writeLong(count == ips.size() ? count : -1);
+            out.writeInt(ipRepository.findTopByOrderByIdDesc().map(ip -> ip.id).orElse(0));
+            ips.write(out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return false, leaving the cache unchanged, when the table no longer has the written row count and highest id
+     */
+    boolean restoreIps(DataInputStream in) throws IOException {
+        long count = in.readLong();
+        int maxId = in.readInt();
+        if (count != ipRepository.count() || maxId != ipRepository.findTopByOrderByIdDesc().map(ip -> ip.id).orElse(0)) return false;
+        var restored = new PrefixTrie();
+        restored.read(in);
+        long stamp = lock.writeLock();
+        try {
+            ips = restored;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter and, while it is in memory, the exact set; like {@link #writeIps}.
+     */
+    void writeCards(DataOutputStream out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            long count = cardRepository.count();
+            out.writeLong(count == (cards != null ? cards.size() : cardFilter.size()) ? count : -1);
+            out.writeInt(cardRepository.findTopByOrderByIdDesc().map(card -> card.id).orElse(0));
+            cardFilter.write(out);
+            out.writeBoolean(cards != null);
+            if (cards != null) {
+                try {
+                    cards.forEach(key -> {
+                        try {
+                            out.writeLong(key);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Uses the written filter, and the exact set if it was written and still fits the budget; the rest comes from
+     * the table. A filter with a different fingerprint width than configured is not used.
+     *
+     * @return false, leaving the cache unchanged, when the table no longer has the written row count and highest id
+     */
+    boolean restoreCards(DataInputStream in) throws IOException {
+        long count = in.readLong();
+        int maxId = in.readInt();
+        if (count != cardRepository.count() || maxId != cardRepository.findTopByOrderByIdDesc().map(card -> card.id).orElse(0)) return false;
+        var filter = CuckooFilter.read(in);
+        LongHashSet exact = null;
+        if (in.readBoolean()) {
+            exact = new LongHashSet();
+            for (long i = 0; i < count; i++) exact.add(in.readLong());
+        }
+        long stamp = lock.writeLock();
+        try {
+            loadCards(filter.fingerprintBits() == fingerprintBits ? filter : null, exact);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    boolean isSuspiciousIp(String ip) {
+        return isSuspiciousIp(ip, true);
+    }
+
+    /**
+     * @param counted false to leave the lookup out of the metrics, for the scoring warm-up
+     */
+    boolean isSuspiciousIp(String ip, boolean counted) {
+        int key = IPv4.pack(ip);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = ips.longestMatch(key) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = ips.longestMatch(key) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (counted) (found ? ipHits : ipMisses).increment();
+        return found;
+    }
+
+    boolean isStolenCard(String number) {
+        return isStolenCard(number, true);
+    }
+
+    /**
+     * @param counted false to leave the lookup out of the metrics, for the scoring warm-up
+     */
+    boolean isStolenCard(String number, boolean counted) {
+        long key = CardNumber.pack(number);
+        long stamp = lock.tryOptimisticRead();
+        var exact = cards;
+        boolean maybe = cardFilter.mightContain(key);
+        boolean found = maybe && exact != null && exact.contains(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                exact = cards;
+                maybe = cardFilter.mightContain(key);
+                found = maybe && exact != null && exact.contains(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (maybe && exact == null) found = cardRepository.existsByNumber(number);
+        if (!counted) return found;
+        if (!maybe) filterNegatives.increment();
+        else if (!found) filterFalsePositives.increment();
+        (found ? cardHits : cardMisses).increment();
+        return found;
+    }
+
+    /**
+     * Exact membership test of an address or range for bulk imports, not counted in the lookup metrics.
+     */
+    boolean containsIp(String cidr) {
+        var prefix = prefix(cidr);
+        long stamp = lock.readLock();
+        try {
+            return ips.contains(prefix.bits(), prefix.length());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    boolean containsCard(String number) {
+        long key = CardNumber.pack(number);
+        LongHashSet exact;
+        long stamp = lock.readLock();
+        try {
+            if (!cardFilter.mightContain(key)) return false;
+            exact = cards;
+            if (exact != null) return exact.contains(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return cardRepository.existsByNumber(number);
+    }
+
+    void addIp(String ip) {
+        long stamp = lock.writeLock();
+        try {
+            add(ips, ip);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void addIps(List<String> batch) {
+        long stamp = lock.writeLock();
+        try {
+            for (var ip : batch) add(ips, ip);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void removeIp(String ip) {
+        long stamp = lock.writeLock();
+        try {
+            var prefix = prefix(ip);
+            ips.remove(prefix.bits(), prefix.length());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void addCard(String number) {
+        addCards(List.of(number));
+    }
+
+    /**
+     * Called once the cards are stored, so a rebuild of a full filter from the table includes them.
+     */
+    void addCards(List<String> batch) {
+        long stamp = lock.writeLock();
+        try {
+            for (var number : batch) {
+                long key = CardNumber.pack(number);
+                if (key == CardNumber.INVALID) continue;
+                if (cards != null && !cards.add(key)) continue;
+                if (!cardFilter.add(key)) {
+                    growFilter();
+                    if (cards == null) return;
+                }
+            }
+            if (cards != null && cardFilter.bytes() + cards.bytes() > memoryBudget) {
+                log.info("Stolen cards exceed the memory budget, the exact check now goes to the database");
+                cards = null;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Only for cards that were in the list; removing anything else from a cuckoo filter can drop another card.
+     */
+    void removeCard(String number) {
+        long stamp = lock.writeLock();
+        try {
+            long key = CardNumber.pack(number);
+            if (cards == null || cards.remove(key)) cardFilter.remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static void add(PrefixTrie trie, String cidr) {
+        var prefix = prefix(cidr);
+        trie.add(prefix.bits(), prefix.length());
+    }
+
+    private static IPv4Prefix prefix(String cidr) {
+        var prefix = IPv4Prefix.parse(cidr);
+        if (prefix == null) throw new IllegalArgumentException("Invalid IPv4 prefix: " + cidr);
+        return prefix;
+    }
+
+    private int size(boolean card) {
+        long stamp = lock.readLock();
+        try {
+            if (!card) return ips.size();
+            return cards != null ? cards.size() : cardFilter.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
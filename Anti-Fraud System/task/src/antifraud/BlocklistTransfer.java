@@ -0,0 +1,226 @@
+package antifraud;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.persistence.EntityManager;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Bulk import and export of the stolen card and suspicious IP lists as CSV (first column, optional header)
+ * or NDJSON ({@code {"number": ...}} / {@code {"ip": ...}} per line); IPs may be CIDR ranges. Uploads are
+ * read line by line, deduplicated against the blocklist cache and inserted in JDBC batches of
+ * {@value #BATCH_SIZE}, each batch in its own transaction, so an upload of any size needs constant memory
+ * beyond the seen-set. Every stored batch is also sent to the other nodes of a partitioned {@link Cluster}.
+ */
+@Component
+class BlocklistTransfer {
+    static final MediaType TEXT_CSV = MediaType.parseMediaType("text/csv");
+    static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_REPORTED_LINES = 100;
+
+    private final CardRepository cardRepository;
+    private final IpRepository ipRepository;
+    private final BlocklistCache blocklistCache;
+    private final Cluster cluster;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter lineWriter;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTemplate;
+    private volatile String quote;
+
+    BlocklistTransfer(CardRepository cardRepository, IpRepository ipRepository, BlocklistCache blocklistCache, Cluster cluster, JdbcTemplate jdbcTemplate, ObjectMapper objectMapper, EntityManager entityManager, PlatformTransactionManager transactionManager) {
+        this.cardRepository = cardRepository;
+        this.ipRepository = ipRepository;
+        this.blocklistCache = blocklistCache;
+        this.cluster = cluster;
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.lineWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+    }
+
+    ImportResult importCards(InputStream in, MediaType contentType) throws BadRequestException {
+        var seen = new LongHashSet();
+        return load(in, contentType, "number", Card::IsValidLuhn,
+                number -> seen.add(CardNumber.pack(number)) && !blocklistCache.containsCard(number),
+                batch -> insert("card", "number", batch, cardRepository::existsByNumber, number -> cardRepository.save(new Card(number))),
+                batch -> {
+                    blocklistCache.addCards(batch);
+                    cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.CARD, true, List.copyOf(batch)));
+                });
+    }
+
+    ImportResult importIps(InputStream in, MediaType contentType) throws BadRequestException {
+        var seen = new LongHashSet();
+        return load(in, contentType, "ip", IPv4Prefix::isValid,
+                ip -> seen.add(IPv4Prefix.parse(ip).key()) && !blocklistCache.containsIp(ip),
+                batch -> insert("ip", "ip", canonical(batch), ipRepository::existsByIp, ip -> ipRepository.save(new IP(ip))),
+                batch -> {
+                    blocklistCache.addIps(batch);
+                    cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.IP, true, List.copyOf(batch)));
+                });
+    }
+
+    ResponseEntity<StreamingResponseBody> exportCards(MediaType format) {
+        return export(format, cardRepository::streamByOrderById, card -> card.number, card -> new TransactionController.CardResponse(card));
+    }
+
+    ResponseEntity<StreamingResponseBody> exportIps(MediaType format) {
+        return export(format, ipRepository::streamByOrderById, ip -> ip.ip, ip -> new TransactionController.IPResponse(ip));
+    }
+
+    private ImportResult load(InputStream in, MediaType contentType, String field, Predicate<String> valid, Predicate<String> isNew,
+                              Function<List<String>, Integer> insert, Consumer<List<String>> cache) throws BadRequestException {
+        boolean ndjson = NDJSON.includes(contentType);
+        if (!ndjson && !TEXT_CSV.includes(contentType) && !MediaType.TEXT_PLAIN.includes(contentType)) throw new BadRequestException();
+        int imported = 0;
+        int duplicates = 0;
+        int invalid = 0;
+        List<Integer> invalidLines = new ArrayList<>();
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try (var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                lineNumber++;
+                if (line.isBlank()) continue;
+                var value = ndjson ? jsonField(line, field) : csvField(line);
+                if (value == null || !valid.test(value)) {
+                    if (!ndjson && lineNumber == 1 && field.equalsIgnoreCase(value)) continue;
+                    invalid++;
+                    if (invalidLines.size() < MAX_REPORTED_LINES) invalidLines.add(lineNumber);
+                    continue;
+                }
+                if (!isNew.test(value)) {
+                    duplicates++;
+                    continue;
+                }
+                batch.add(value);
+                if (batch.size() == BATCH_SIZE) {
+                    int inserted = insert.apply(batch);
+                    cache.accept(batch);
+                    imported += inserted;
+                    duplicates += batch.size() - inserted;
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!batch.isEmpty()) {
+            int inserted = insert.apply(batch);
+            cache.accept(batch);
+            imported += inserted;
+            duplicates += batch.size() - inserted;
+        }
+        return new ImportResult(imported, duplicates, invalid, invalidLines);
+    }
+
+    private static List<String> canonical(List<String> cidrs) {
+        return cidrs.stream().map(cidr -> IPv4Prefix.parse(cidr).toString()).toList();
+    }
+
+    private String jsonField(String line, String field) {
+        try {
+            var value = objectMapper.readTree(line).get(field);
+            return value != null && value.isTextual() ? value.asText() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String csvField(String line) {
+        int comma = line.indexOf(',');
+        var value = (comma < 0 ? line : line.substring(0, comma)).strip();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    /**
+     * Inserts the batch with one batched statement. When a row was added concurrently through the single
+     * entry endpoint the batch is rolled back and retried row by row, skipping what already exists.
+     *
+     * @return the number of rows inserted
+     */
+    private int insert(String table, String column, List<String> batch, Predicate<String> exists, Consumer<String> save) {
+        var q = quote();
+        var sql = "insert into %s%s%s (%s%s%s) values (?)".formatted(q, table, q, q, column, q);
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(sql, batch, BATCH_SIZE, (ps, value) -> ps.setString(1, value)));
+            return batch.size();
+        } catch (DataIntegrityViolationException e) {
+            int inserted = 0;
+            for (var value : batch) {
+                Boolean saved = transactionTemplate.execute(status -> {
+                    if (exists.test(value)) return false;
+                    save.accept(value);
+                    return true;
+                });
+                if (Boolean.TRUE.equals(saved)) inserted++;
+            }
+            return inserted;
+        }
+    }
+
+    /**
+     * Identifiers are globally quoted by Hibernate, so the hand-written insert quotes them the same way.
+     */
+    private String quote() {
+        if (quote == null) {
+            quote = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getIdentifierQuoteString().strip());
+        }
+        return quote;
+    }
+
+    private <T> ResponseEntity<StreamingResponseBody> export(MediaType format, Supplier<Stream<T>> rows, Function<T, String> csv, Function<T, ?> json) {
+        boolean ndjson = NDJSON.equalsTypeAndSubtype(format);
+        StreamingResponseBody body = out -> readOnlyTemplate.executeWithoutResult(status -> {
+            var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            try (var stream = rows.get()) {
+                for (var iterator = stream.iterator(); iterator.hasNext(); ) {
+                    T row = iterator.next();
+                    writer.write(ndjson ? lineWriter.writeValueAsString(json.apply(row)) : csv.apply(row));
+                    writer.write('\n');
+                    entityManager.detach(row);
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok().contentType(ndjson ? NDJSON : TEXT_CSV).body(body);
+    }
+
+    record ImportResult(int imported, int duplicates, int invalid, List<Integer> invalidLines) {
+    }
+}
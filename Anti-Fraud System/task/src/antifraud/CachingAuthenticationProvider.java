@@ -0,0 +1,49 @@
+package antifraud;
+
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Authenticates from the {@link CredentialCache} when possible and falls back to the regular
+ * {@link UserService} lookup and password check, caching the credentials once they are verified.
+ */
+@Component
+class CachingAuthenticationProvider implements AuthenticationProvider {
+    private final DaoAuthenticationProvider delegate;
+    private final CredentialCache credentialCache;
+
+    CachingAuthenticationProvider(UserService userService, PasswordEncoder passwordEncoder, CredentialCache credentialCache) {
+        this.delegate = new DaoAuthenticationProvider(passwordEncoder);
+        this.delegate.setUserDetailsService(userService);
+        this.credentialCache = credentialCache;
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        var username = authentication.getName();
+        var password = authentication.getCredentials() == null ? "" : authentication.getCredentials().toString();
+        var cached = credentialCache.get(username, password);
+        if (cached != null) {
+            var result = UsernamePasswordAuthenticationToken.authenticated(cached, null, cached.getAuthorities());
+            result.setDetails(authentication.getDetails());
+            return result;
+        }
+        long generation = credentialCache.generation();
+        var result = delegate.authenticate(authentication);
+        if (result.getPrincipal() instanceof UserDetails user) {
+            credentialCache.put(user, password, generation);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return delegate.supports(authentication);
+    }
+}
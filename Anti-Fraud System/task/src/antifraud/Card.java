@@ -1,5 +1,6 @@
 package antifraud;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
@@ -12,6 +13,7 @@ class Card {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     int id;
+    @Column(unique = true)
     String number;
 
     Card(String number) {
@@ -22,17 +24,21 @@ class Card {
 
     }
 
+    /**
+     * Also rejects numbers longer than {@value CardNumber#MAX_LENGTH} digits, the longest card numbers issued,
+     * so every accepted number has its own {@link CardNumber#pack packed} key.
+     */
     static boolean IsValidLuhn(String number) {
-        int[] digits = number.chars().map(c -> c - '0').toArray();
-        int check_digit = 0;
-        for (int i = digits.length - 2; i >= 0; --i) {
-            check_digit += switch (i % 2) {
-                case 0 -> digits[i] > 4 ? digits[i] * 2 - 9 : digits[i] * 2;
-                case 1 -> digits[i];
-                default -> throw new IllegalStateException("Unexpected value: " + i % 2);
-            };
+        int length = number.length();
+        if (length == 0 || length > CardNumber.MAX_LENGTH) return false;
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return false;
+            if (i == length - 1 || i % 2 == 1) sum += digit;
+            else sum += digit > 4 ? digit * 2 - 9 : digit * 2;
         }
-        return (check_digit + digits[digits.length - 1]) % 10 == 0;
+        return sum % 10 == 0;
     }
 }
 
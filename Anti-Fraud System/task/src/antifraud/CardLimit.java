@@ -0,0 +1,48 @@
+package antifraud;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+@Entity
+class CardLimit {
+    @Id
+    String number;
+    long allowedAmount;
+    long manualAmount;
+
+    public CardLimit() {
+    }
+
+    CardLimit(String number, Policy policy) {
+        this.number = number;
+        this.allowedAmount = policy.initialAllowedAmount();
+        this.manualAmount = policy.initialManualAmount();
+    }
+
+    CardLimit(String number, long allowedAmount, long manualAmount) {
+        this.number = number;
+        this.allowedAmount = allowedAmount;
+        this.manualAmount = manualAmount;
+    }
+
+    void applyFeedback(Transaction t, Policy policy) {
+        double w = policy.weight();
+        if (t.feedback == TransactionResult.ALLOWED) allowedAmount = adjust(allowedAmount, w, t.amount);
+        else if (t.feedback != null && t.result == TransactionResult.ALLOWED) allowedAmount = adjust(allowedAmount, w, -t.amount);
+
+        if (t.feedback == TransactionResult.PROHIBITED) manualAmount = adjust(manualAmount, w, -t.amount);
+        else if (t.feedback != null && t.result == TransactionResult.PROHIBITED) manualAmount = adjust(manualAmount, w, t.amount);
+    }
+
+    private static long adjust(long oldAmount, double weight, long transactionAmount) {
+        return (long) Math.ceil((1 - weight) * oldAmount + weight * transactionAmount);
+    }
+
+    /**
+     * Limits of a card without feedback and the share of the transaction amount in a feedback adjustment,
+     * taken from the CARD_LIMIT {@link Rule}.
+     */
+    record Policy(long initialAllowedAmount, long initialManualAmount, double weight) {
+        static final Policy DEFAULT = new Policy(200, 1500, .2);
+    }
+}
@@ -0,0 +1,54 @@
+package antifraud;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds the persisted {@link CardLimit} state by replaying all feedback in the order it was applied, as each
+ * adjustment weighs the previous limit. Feedback stored before its date was recorded sorts first (nulls sort low on
+ * H2 and MySQL), in transaction order; feedback applied within the same instant, by transaction id.
+ * Runs when forced with {@code antifraud.card-limit.rebuild=true}, or automatically when the limit
+ * table is still empty but transactions with feedback exist (first start after upgrading). Runs before the
+ * {@link CardViews} load the limits.
+ */
+@Component
+@Order(1)
+class CardLimitRebuilder implements ApplicationRunner {
+    private final TransactionRepository transactionRepository;
+    private final CardLimitRepository cardLimitRepository;
+    private final TransactionChecker transactionChecker;
+    private final boolean forceRebuild;
+
+    CardLimitRebuilder(TransactionRepository transactionRepository, CardLimitRepository cardLimitRepository, TransactionChecker transactionChecker,
+                       @Value("${antifraud.card-limit.rebuild:false}") boolean forceRebuild) {
+        this.transactionRepository = transactionRepository;
+        this.cardLimitRepository = cardLimitRepository;
+        this.transactionChecker = transactionChecker;
+        this.forceRebuild = forceRebuild;
+    }
+
+    @Override
+    @Transactional
+    public void run(ApplicationArguments args) {
+        if (forceRebuild || cardLimitRepository.count() == 0 && transactionRepository.existsByFeedbackIsNotNull()) {
+            rebuild();
+        }
+    }
+
+    void rebuild() {
+        var policy = transactionChecker.cardLimitPolicy();
+        Map<String, CardLimit> limits = new HashMap<>();
+        try (var transactions = transactionRepository.streamByFeedbackIsNotNullOrderByFeedbackDateAscIdAsc()) {
+            transactions.forEach(t -> limits.computeIfAbsent(t.number, n -> new CardLimit(n, policy)).applyFeedback(t, policy));
+        }
+        cardLimitRepository.deleteAll();
+        cardLimitRepository.saveAll(limits.values());
+    }
+}
@@ -0,0 +1,6 @@
+package antifraud;
+
+import org.springframework.data.repository.CrudRepository;
+
+interface CardLimitRepository extends CrudRepository<CardLimit, String> {
+}
@@ -0,0 +1,44 @@
+package antifraud;
+
+/**
+ * Packs card number strings of 1 to 19 digits into a single (unsigned) long without losing leading zeros:
+ * every length gets its own range, so {@code "0042"} and {@code "42"} pack to different values. Anything else packs
+ * to {@link #INVALID}, which is not a key: the API rejects such numbers, and rows stored before it did are left out
+ * of the in-memory state.
+ */
+final class CardNumber {
+    static final long INVALID = -1;
+    static final int MAX_LENGTH = 19;
+    private static final long[] OFFSETS = new long[MAX_LENGTH + 1];
+
+    static {
+        long power = 10;
+        for (int length = 2; length <= MAX_LENGTH; length++) {
+            OFFSETS[length] = OFFSETS[length - 1] + power;
+            power *= 10;
+        }
+    }
+
+    private CardNumber() {
+    }
+
+    static long pack(String number) {
+        int length = number.length();
+        if (length == 0 || length > MAX_LENGTH) return INVALID;
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return INVALID;
+            value = value * 10 + digit;
+        }
+        return OFFSETS[length] + value;
+    }
+
+    static String unpack(long packed) {
+        if (packed == INVALID) throw new IllegalArgumentException("Not a packed card number");
+        int length = MAX_LENGTH;
+        while (length > 1 && Long.compareUnsigned(packed, OFFSETS[length]) < 0) length--;
+        var digits = Long.toUnsignedString(packed - OFFSETS[length]);
+        return "0".repeat(length - digits.length()) + digits;
+    }
+}
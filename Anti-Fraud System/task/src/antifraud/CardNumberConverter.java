@@ -0,0 +1,24 @@
+package antifraud;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores a card number as its {@link CardNumber#pack packed} long. Applied by the {@code compact} profile,
+ * see {@code META-INF/compact-orm.xml}.
+ */
+@Converter
+class CardNumberConverter implements AttributeConverter<String, Long> {
+    @Override
+    public Long convertToDatabaseColumn(String number) {
+        if (number == null) return null;
+        long packed = CardNumber.pack(number);
+        if (packed == CardNumber.INVALID) throw new IllegalArgumentException("Not a card number: " + number);
+        return packed;
+    }
+
+    @Override
+    public String convertToEntityAttribute(Long packed) {
+        return packed == null ? null : CardNumber.unpack(packed);
+    }
+}
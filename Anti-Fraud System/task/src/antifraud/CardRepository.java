@@ -1,12 +1,22 @@
 package antifraud;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 interface CardRepository extends CrudRepository<Card, Integer> {
     Optional<Card> findByNumber(String number);
     boolean existsByNumber(String number);
+    Optional<Card> findTopByOrderByIdDesc();
+    List<NumberOnly> findAllBy();
     List<Card> findByOrderById();
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<Card> streamByOrderById();
+
+    record NumberOnly(String number) {}
 }
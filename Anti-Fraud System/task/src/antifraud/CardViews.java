@@ -0,0 +1,381 @@
+package antifraud;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-card state materialised from the {@link EventLog}, with {@code antifraud.event-log.enabled=true}: the feedback
+ * limits and the transaction counts of every card, while the {@link CorrelationWindow} serves as the view of recent
+ * regions and IPs. Every scored transaction and every feedback is appended to the log and applied to the views, so
+ * scoring reads card limits from memory. The database stays the source of truth for the API.
+ * <p>
+ * The views and the correlation window are snapshotted every {@code antifraud.event-log.snapshot-interval} and on
+ * shutdown, after which the covered log segments are deleted. At startup the snapshot is loaded and the events after
+ * it are replayed; without a usable snapshot, when the transaction table does not end with the last transaction the
+ * views have seen (transactions written while the log was disabled or lost in a crash), or when the card limits and
+ * feedback counts differ from the database (feedback committed but not appended), the views are rebuilt from the
+ * database. A transaction the rebuild counted whose event is appended afterwards is skipped by id, and no snapshot
+ * is written until no such event can come any more. Like the
+ * {@link CardLimitRebuilder}, replayed feedback is applied with the current CARD_LIMIT policy. In a partitioned
+ * {@link Cluster} only transactions of the cards this node owns have to be in the views.
+ */
+@Component
+@Order(2)
+class CardViews implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(CardViews.class);
+    private static final int VIEWS = 1;
+
+    private final TransactionRepository transactionRepository;
+    private final CardLimitRepository cardLimitRepository;
+    private final CorrelationWindow correlationWindow;
+    private final TransactionIdAllocator transactionIds;
+    private final Cluster cluster;
+    private final TransactionTemplate readOnlyTemplate;
+    private final EventLog eventLog;
+    private final Path snapshot;
+    private final boolean forceRebuild;
+    private final Map<String, CardView> views = new ConcurrentHashMap<>();
+    private volatile CardLimit.Policy policy = CardLimit.Policy.DEFAULT;
+    private volatile boolean ready;
+    private int lastTransactionId;
+    /** Ids of the transactions the last rebuild counted, while their events may still be appended; guarded by the log. */
+    private BitSet bootstrapped;
+
+    CardViews(TransactionRepository transactionRepository, CardLimitRepository cardLimitRepository, CorrelationWindow correlationWindow,
+              TransactionIdAllocator transactionIds, Cluster cluster, PlatformTransactionManager transactionManager,
+              @Value("${antifraud.event-log.enabled:false}") boolean enabled,
+              @Value("${antifraud.event-log.dir:events}") Path directory,
+              @Value("${antifraud.event-log.segment-size:64MB}") DataSize segmentSize,
+              @Value("${antifraud.event-log.fsync:false}") boolean fsync,
+              @Value("${antifraud.card-limit.rebuild:false}") boolean forceRebuild) throws IOException {
+        this.transactionRepository = transactionRepository;
+        this.cardLimitRepository = cardLimitRepository;
+        this.correlationWindow = correlationWindow;
+        this.transactionIds = transactionIds;
+        this.cluster = cluster;
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+        this.eventLog = enabled ? new EventLog(directory, segmentSize.toBytes(), fsync) : null;
+        this.snapshot = directory.resolve("views.snapshot");
+        this.forceRebuild = forceRebuild;
+    }
+
+    void usePolicy(CardLimit.Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Whether the views are loaded; until then, and when the event log is disabled, callers ask the database.
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    Optional<CardLimit> cardLimit(String number) {
+        var view = views.get(number);
+        return view == null || !view.limited() ? Optional.empty()
+                : Optional.of(new CardLimit(number, view.allowedAmount(), view.manualAmount()));
+    }
+
+    Optional<CardView> view(String number) {
+        return Optional.ofNullable(views.get(number));
+    }
+
+    void scored(Transaction t) {
+        if (eventLog != null && CardNumber.pack(t.number) != CardNumber.INVALID) eventLog.append(EventLog.Event.Type.SCORED, t, this::apply);
+    }
+
+    /**
+     * Called once the feedback is committed; the card's lane is still locked, so it is applied before the card
+     * is scored again.
+     */
+    void feedback(Transaction t) {
+        if (eventLog != null && CardNumber.pack(t.number) != CardNumber.INVALID) eventLog.append(EventLog.Event.Type.FEEDBACK, t, this::apply);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (eventLog == null) return;
+        eventLog.locked(() -> {
+            try {
+                long start = System.nanoTime();
+                if (forceRebuild || !restore()) bootstrap();
+                ready = true;
+                log.info("Card views of {} cards ready in {} ms", views.size(), (System.nanoTime() - start) / 1_000_000);
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.event-log.snapshot-interval:PT10M}")
+    void writeSnapshot() {
+        if (!ready || !settled()) return;
+        try {
+            long sequence = writeSnapshotFile();
+            eventLog.deleteThrough(sequence);
+        } catch (IOException e) {
+            log.warn("Could not write card views snapshot {}", snapshot, e);
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        if (eventLog == null) return;
+        writeSnapshot();
+        eventLog.close();
+    }
+
+    /**
+     * Whether the events of the transactions counted by the last rebuild are all appended: every id up to the
+     * newest counted one is released, and its event was appended by then.
+     */
+    private boolean settled() {
+        return eventLog.locked(() -> {
+            if (bootstrapped != null && transactionIds.pageLimit() >= bootstrapped.length()) bootstrapped = null;
+            return bootstrapped == null;
+        });
+    }
+
+    private void apply(EventLog.Event event) {
+        var number = CardNumber.unpack(event.number());
+        if (event.type() == EventLog.Event.Type.SCORED) {
+            // committed before the rebuild read the table, appended after it
+            if (bootstrapped != null && bootstrapped.get(event.transactionId())) {
+                bootstrapped.clear(event.transactionId());
+                return;
+            }
+            views.merge(number, CardView.EMPTY.scored(event.result()), (view, e) -> view.scored(event.result()));
+            if (event.transactionId() > lastTransactionId) lastTransactionId = event.transactionId();
+        } else {
+            var view = views.getOrDefault(number, CardView.EMPTY);
+            var limit = view.limited() ? new CardLimit(number, view.allowedAmount(), view.manualAmount()) : new CardLimit(number, policy);
+            var t = new Transaction(event.transactionId(), event.amount(), null, number, event.region(), null, event.result());
+            t.feedback = event.feedback();
+            limit.applyFeedback(t, policy);
+            views.put(number, view.addFeedback().withLimits(limit.allowedAmount, limit.manualAmount));
+        }
+    }
+
+    /**
+     * Loads the snapshot and replays the events after it.
+     *
+     * @return false if there is no usable snapshot or the database has transactions the views have not seen
+     */
+    private boolean restore() throws IOException {
+        long sequence;
+        try {
+            var file = SnapshotFile.open(snapshot);
+            var in = file == null ? null : file.section(VIEWS).orElse(null);
+            if (in == null) return false;
+            sequence = in.readLong();
+            lastTransactionId = in.readInt();
+            views.clear();
+            for (int n = in.readInt(); n > 0; n--) {
+                views.put(CardNumber.unpack(in.readLong()), CardView.read(in));
+            }
+            correlationWindow.read(in);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable card views snapshot {}", snapshot, e);
+            return false;
+        }
+        if (sequence > eventLog.lastSequence()) {
+            log.info("Card views snapshot {} is ahead of the event log, rebuilding", snapshot);
+            return false;
+        }
+        long[] replayed = new long[2];
+        replayed[0] = sequence;
+        try {
+            eventLog.replay(sequence, event -> {
+                if (event.sequence() != replayed[0] + 1) throw new IllegalStateException("Gap in the event log before event " + event.sequence());
+                replayed[0] = event.sequence();
+                replayed[1]++;
+                apply(event);
+                if (event.type() == EventLog.Event.Type.SCORED) {
+                    correlationWindow.record(CardNumber.unpack(event.number()), event.date(), event.region(), event.ip());
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.warn("Cannot replay the event log, rebuilding: {}", e.getMessage());
+            return false;
+        }
+        // the write-behind log, if any, has been replayed into the table by now
+        int newest = transactionRepository.findTopByOrderByIdDesc().map(t -> t.id).orElse(0);
+        boolean unseen = newest > lastTransactionId && readOnlyTemplate.execute(status -> {
+            try (var transactions = transactionRepository.streamByIdGreaterThanOrderById(lastTransactionId)) {
+                return transactions.anyMatch(t -> cluster.owns(t.number));
+            }
+        });
+        if (newest < lastTransactionId || unseen) {
+            log.info("Transaction table does not match the card views (last id {} vs {}), rebuilding", newest, lastTransactionId);
+            return false;
+        }
+        if (!matchesFeedback()) {
+            log.info("Card limits or feedback counts in the database do not match the card views, rebuilding");
+            return false;
+        }
+        log.info("Restored card views from {} and replayed {} events", snapshot, replayed[1]);
+        return true;
+    }
+
+    /**
+     * Compares the limits and feedback counts of the cards this node owns with the database, which has feedback the
+     * views miss when it was committed but never appended, or applied while the event log was disabled.
+     */
+    private boolean matchesFeedback() {
+        return readOnlyTemplate.execute(status -> {
+            int limited = 0;
+            for (var limit : cardLimitRepository.findAll()) {
+                if (CardNumber.pack(limit.number) == CardNumber.INVALID || !cluster.owns(limit.number)) continue;
+                var view = views.get(limit.number);
+                if (view == null || !view.limited() || view.allowedAmount() != limit.allowedAmount || view.manualAmount() != limit.manualAmount) {
+                    return false;
+                }
+                limited++;
+            }
+            Map<String, Integer> feedback = new HashMap<>();
+            try (var numbers = transactionRepository.streamNumberByFeedbackIsNotNull()) {
+                numbers.forEach(t -> {
+                    if (CardNumber.pack(t.number()) != CardNumber.INVALID && cluster.owns(t.number())) feedback.merge(t.number(), 1, Integer::sum);
+                });
+            }
+            int withLimits = 0;
+            int withFeedback = 0;
+            for (var entry : views.entrySet()) {
+                if (!cluster.owns(entry.getKey())) continue;
+                var view = entry.getValue();
+                if (view.limited()) withLimits++;
+                if (view.withFeedback() > 0) withFeedback++;
+                if (view.withFeedback() != feedback.getOrDefault(entry.getKey(), 0)) return false;
+            }
+            return withLimits == limited && withFeedback == feedback.size();
+        });
+    }
+
+    /**
+     * Counts every transaction in the table. Events of counted transactions that are appended after it are skipped,
+     * so the snapshot is deleted here and the next one written once they are through, see {@link #settled}.
+     */
+    private void bootstrap() throws IOException {
+        views.clear();
+        lastTransactionId = 0;
+        var counted = new BitSet();
+        readOnlyTemplate.executeWithoutResult(status -> {
+            for (var limit : cardLimitRepository.findAll()) {
+                if (CardNumber.pack(limit.number) == CardNumber.INVALID) continue;
+                views.put(limit.number, CardView.EMPTY.withLimits(limit.allowedAmount, limit.manualAmount));
+            }
+            try (var transactions = transactionRepository.streamByOrderById()) {
+                transactions.forEach(t -> {
+                    if (t.id > lastTransactionId) lastTransactionId = t.id;
+                    if (CardNumber.pack(t.number) == CardNumber.INVALID) return;
+                    counted.set(t.id);
+                    var view = views.getOrDefault(t.number, CardView.EMPTY).scored(t.result);
+                    views.put(t.number, t.feedback == null ? view : view.addFeedback());
+                });
+            }
+            correlationWindow.warmUp();
+        });
+        eventLog.reset(eventLog.lastSequence());
+        bootstrapped = counted;
+        Files.deleteIfExists(snapshot);
+        log.info("Rebuilt card views from the database");
+    }
+
+    /**
+     * The views are copied while appends wait, the correlation window is written after that: every event up to
+     * the snapshot's sequence was recorded in the window before it was appended, later ones are replayed again.
+     *
+     * @return the sequence number the snapshot covers
+     */
+    private long writeSnapshotFile() throws IOException {
+        Map<String, CardView> copy = new HashMap<>();
+        long[] covered = new long[1];
+        int[] transactionId = new int[1];
+        eventLog.locked(() -> {
+            copy.putAll(views);
+            covered[0] = eventLog.lastSequence();
+            transactionId[0] = lastTransactionId;
+            return null;
+        });
+        try (var writer = SnapshotFile.create(snapshot)) {
+            writer.section(VIEWS, out -> {
+                out.writeLong(covered[0]);
+                out.writeInt(transactionId[0]);
+                out.writeInt(copy.size());
+                for (var entry : copy.entrySet()) {
+                    out.writeLong(CardNumber.pack(entry.getKey()));
+                    entry.getValue().write(out);
+                }
+                correlationWindow.write(out);
+            });
+            writer.commit();
+        }
+        return covered[0];
+    }
+
+    /**
+     * Counts of a card's transactions by result and with feedback, and its feedback-adjusted limits once it had
+     * feedback.
+     */
+    record CardView(int allowed, int manualProcessing, int prohibited, int withFeedback,
+                    boolean limited, long allowedAmount, long manualAmount) {
+        static final CardView EMPTY = new CardView(0, 0, 0, 0, false, 0, 0);
+
+        int transactions() {
+            return allowed + manualProcessing + prohibited;
+        }
+
+        CardView scored(TransactionResult result) {
+            return new CardView(allowed + (result == TransactionResult.ALLOWED ? 1 : 0),
+                    manualProcessing + (result == TransactionResult.MANUAL_PROCESSING ? 1 : 0),
+                    prohibited + (result == TransactionResult.PROHIBITED ? 1 : 0),
+                    withFeedback, limited, allowedAmount, manualAmount);
+        }
+
+        CardView addFeedback() {
+            return new CardView(allowed, manualProcessing, prohibited, withFeedback + 1, limited, allowedAmount, manualAmount);
+        }
+
+        CardView withLimits(long allowedAmount, long manualAmount) {
+            return new CardView(allowed, manualProcessing, prohibited, withFeedback, true, allowedAmount, manualAmount);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(allowed);
+            out.writeInt(manualProcessing);
+            out.writeInt(prohibited);
+            out.writeInt(withFeedback);
+            out.writeBoolean(limited);
+            out.writeLong(allowedAmount);
+            out.writeLong(manualAmount);
+        }
+
+        static CardView read(DataInputStream in) throws IOException {
+            return new CardView(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readBoolean(), in.readLong(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package antifraud;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter.MeterProvider;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the checks of {@link TransactionChecker} for one transaction. Checks that block on the database are
+ * started on a bounded executor first, the in-memory checks run on the calling thread meanwhile. With virtual
+ * threads enabled ({@code spring.threads.virtual.enabled} on Java 21) every blocking check gets its own virtual
+ * thread instead, at most {@code antifraud.checks.threads} at a time so they cannot drain the connection pool.
+ * A check that does not finish within {@code antifraud.checks.timeout} counts as MANUAL_PROCESSING.
+ * With {@code antifraud.checks.short-circuit=true} the remaining checks are cancelled as soon as one
+ * check prohibits the transaction; the info then only lists the checks that ran.
+ * <p>
+ * Scoring time is recorded as {@code antifraud.scoring}, verdicts as {@code antifraud.verdicts} by result and
+ * {@code antifraud.verdicts.triggers} by result and check, timed out checks as {@code antifraud.checks.timeouts}.
+ */
+@Component
+class CheckPipeline {
+    private final TransactionChecker transactionChecker;
+    private final AsyncTaskExecutor executor;
+    private final ExecutorService pool;
+    private final long timeoutNanos;
+    private final boolean shortCircuit;
+    private final Timer scoring;
+    private final Map<TransactionResult, Counter> verdicts = new EnumMap<>(TransactionResult.class);
+    private final MeterProvider<Counter> triggers;
+    private final MeterProvider<Counter> timeouts;
+
+    CheckPipeline(TransactionChecker transactionChecker, MeterRegistry registry, Environment environment,
+                  @Value("${antifraud.checks.threads:16}") int threads,
+                  @Value("${antifraud.checks.timeout:PT2S}") Duration timeout,
+                  @Value("${antifraud.checks.short-circuit:false}") boolean shortCircuit) {
+        this.transactionChecker = transactionChecker;
+        this.scoring = Timer.builder("antifraud.scoring").register(registry);
+        for (var result : TransactionResult.values()) {
+            verdicts.put(result, Counter.builder("antifraud.verdicts").tag("result", result.name()).register(registry));
+        }
+        this.triggers = Counter.builder("antifraud.verdicts.triggers").withRegistry(registry);
+        this.timeouts = Counter.builder("antifraud.checks.timeouts").withRegistry(registry);
+        if (Threading.VIRTUAL.isActive(environment)) {
+            var virtual = new SimpleAsyncTaskExecutor("check-");
+            virtual.setVirtualThreads(true);
+            virtual.setConcurrencyLimit(threads);
+            this.executor = virtual;
+            this.pool = null;
+        } else {
+            this.pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                    new ArrayBlockingQueue<>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+            this.executor = new TaskExecutorAdapter(pool);
+        }
+        this.timeoutNanos = timeout.toNanos();
+        this.shortCircuit = shortCircuit;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (pool != null) pool.shutdownNow();
+        else ((SimpleAsyncTaskExecutor) executor).close();
+    }
+
+    Verdict score(TransactionController.TransactionRequest transaction) {
+        long start = System.nanoTime();
+        var verdict = evaluate(transaction, transactionChecker.getChecks(), true);
+        scoring.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return verdict;
+    }
+
+    /**
+     * Scores through the same steps with {@link TransactionChecker#getUncountedChecks}, leaving every metric as it
+     * was; for the {@link ScoringWarmUp}.
+     */
+    Verdict scoreUncounted(TransactionController.TransactionRequest transaction) {
+        return evaluate(transaction, transactionChecker.getUncountedChecks(), false);
+    }
+
+    private Verdict evaluate(TransactionController.TransactionRequest transaction, List<TransactionChecker.Check> checks, boolean counted) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Map<TransactionChecker.Check, Future<TransactionResult>> pending = new LinkedHashMap<>();
+        for (var check : checks) {
+            if (check.blocking().getAsBoolean()) pending.put(check, executor.submit(() -> check.method().apply(transaction)));
+        }
+
+        List<String> manualInfos = new ArrayList<>();
+        List<String> prohibitedInfos = new ArrayList<>();
+        for (var check : checks) {
+            if (pending.containsKey(check)) continue;
+            collect(check.description(), check.method().apply(transaction), manualInfos, prohibitedInfos);
+            if (shortCircuit && !prohibitedInfos.isEmpty()) {
+                pending.values().forEach(f -> f.cancel(true));
+                return verdict(manualInfos, prohibitedInfos, counted);
+            }
+        }
+
+        var iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            iterator.remove();
+            var future = entry.getValue();
+            TransactionResult result;
+            try {
+                result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                if (counted) timeouts.withTags("check", entry.getKey().description()).increment();
+                result = TransactionResult.MANUAL_PROCESSING;
+            } catch (ExecutionException e) {
+                pending.values().forEach(f -> f.cancel(true));
+                if (e.getCause() instanceof RuntimeException r) throw r;
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                pending.values().forEach(f -> f.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            collect(entry.getKey().description(), result, manualInfos, prohibitedInfos);
+            if (shortCircuit && !prohibitedInfos.isEmpty()) {
+                pending.values().forEach(f -> f.cancel(true));
+                break;
+            }
+        }
+        return verdict(manualInfos, prohibitedInfos, counted);
+    }
+
+    static void collect(String description, TransactionResult result, List<String> manualInfos, List<String> prohibitedInfos) {
+        switch (result) {
+            case MANUAL_PROCESSING -> manualInfos.add(description);
+            case PROHIBITED -> prohibitedInfos.add(description);
+        }
+    }
+
+    private Verdict verdict(List<String> manualInfos, List<String> prohibitedInfos, boolean counted) {
+        var verdict = combine(manualInfos, prohibitedInfos);
+        if (!counted) return verdict;
+        verdicts.get(verdict.result()).increment();
+        if (verdict.result() != TransactionResult.ALLOWED) {
+            var infos = verdict.result() == TransactionResult.PROHIBITED ? prohibitedInfos : manualInfos;
+            for (var info : infos) triggers.withTags("result", verdict.result().name(), "check", info).increment();
+        }
+        return verdict;
+    }
+
+    static Verdict combine(List<String> manualInfos, List<String> prohibitedInfos) {
+        List<String> infos;
+        TransactionResult status;
+        if (!prohibitedInfos.isEmpty()) {
+            infos = prohibitedInfos;
+            status = TransactionResult.PROHIBITED;
+        } else if (!manualInfos.isEmpty()) {
+            infos = manualInfos;
+            status = TransactionResult.MANUAL_PROCESSING;
+        } else {
+            infos = List.of("none");
+            status = TransactionResult.ALLOWED;
+        }
+        return new Verdict(status, infos.stream().sorted().collect(Collectors.joining(", ")));
+    }
+
+    record Verdict(TransactionResult result, String info) {
+    }
+}
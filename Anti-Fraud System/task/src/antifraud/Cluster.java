@@ -0,0 +1,215 @@
+package antifraud;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+/**
+ * Static membership of a partitioned deployment, from {@code antifraud.cluster.nodes} (the base URLs of all nodes,
+ * in the same order on every node) and {@code antifraud.cluster.self} (the URL of this one). Card numbers are
+ * consistently hashed to an owning node on a ring of {@code antifraud.cluster.virtual-nodes} points per node, so
+ * adding a node moves about 1 / nodes of the cards. Only the owner scores a card and takes feedback on it, which
+ * keeps its card limit, correlation window and rolling counters complete in memory; other nodes forward to it under
+ * {@code /api/antifraud/internal}, authenticated by the shared {@code antifraud.cluster.secret}.
+ * <p>
+ * With fewer than two nodes configured every card is owned locally and nothing is forwarded. Membership is not
+ * discovered or health-checked: while a node is down the requests for its cards fail with 503.
+ */
+@Component
+class Cluster {
+    static final String SECRET_HEADER = "X-Antifraud-Cluster-Secret";
+    static final String INTERNAL_PATH = "/api/antifraud/internal";
+    private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+
+    private final ObjectMapper objectMapper;
+    private final List<URI> nodes;
+    private final int self;
+    private final byte[] secret;
+    private final long[] points;
+    private final int[] owners;
+    private final Duration timeout;
+    private final HttpClient client;
+
+    Cluster(ObjectMapper objectMapper,
+            @Value("${antifraud.cluster.nodes:}") List<String> nodes,
+            @Value("${antifraud.cluster.self:}") String self,
+            @Value("${antifraud.cluster.secret:}") String secret,
+            @Value("${antifraud.cluster.virtual-nodes:128}") int virtualNodes,
+            @Value("${antifraud.cluster.timeout:PT5S}") Duration timeout) {
+        this.objectMapper = objectMapper;
+        this.nodes = nodes.stream().filter(node -> !node.isBlank()).map(Cluster::baseUri).toList();
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.timeout = timeout;
+        if (this.nodes.size() < 2) {
+            this.self = 0;
+            this.points = new long[0];
+            this.owners = new int[0];
+            this.client = null;
+            return;
+        }
+        if (this.nodes.stream().distinct().count() != this.nodes.size()) throw new IllegalStateException("Duplicate node in antifraud.cluster.nodes");
+        this.self = this.nodes.indexOf(self.isBlank() ? null : baseUri(self));
+        if (this.self < 0) throw new IllegalStateException("antifraud.cluster.self must be one of antifraud.cluster.nodes");
+        if (secret.isBlank()) throw new IllegalStateException("antifraud.cluster.secret is required with several nodes");
+        this.points = new long[this.nodes.size() * virtualNodes];
+        this.owners = new int[points.length];
+        long[] ring = new long[points.length];
+        for (int node = 0, i = 0; node < this.nodes.size(); node++) {
+            long seed = this.nodes.get(node).toString().hashCode();
+            for (int v = 0; v < virtualNodes; v++, i++) {
+                // the point in the high bits, the node in the low ones, so sorting keeps them together
+                ring[i] = mix(seed << 32 | v) & ~0xffffL | node;
+            }
+        }
+        Arrays.sort(ring);
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i] & ~0xffffL;
+            owners[i] = (int) (ring[i] & 0xffff);
+        }
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+        log.info("Partitioning cards as node {} of {}", this.nodes.get(this.self), this.nodes.size());
+    }
+
+    boolean isPartitioned() {
+        return points.length > 0;
+    }
+
+    /**
+     * The position of this node in {@code antifraud.cluster.nodes}, 0 for a single node.
+     */
+    int index() {
+        return self;
+    }
+
+    int owner(String number) {
+        if (!isPartitioned()) return self;
+        int i = Arrays.binarySearch(points, mix(CardNumber.pack(number)) & ~0xffffL);
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    boolean owns(String number) {
+        return owner(number) == self;
+    }
+
+    List<Integer> peers() {
+        return IntStream.range(0, nodes.size()).filter(node -> node != self).boxed().toList();
+    }
+
+    boolean isAuthorized(String secret) {
+        return isPartitioned() && secret != null && MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends {@code body} as JSON to the internal {@code path} of {@code node} and reads the response as {@code type}.
+     * Error statuses of the node are passed on; a node that cannot be reached is reported as 503.
+     */
+    <T> T call(int node, String method, String path, Object body, Class<T> type) {
+        return join(callAsync(node, method, path, body, objectMapper.constructType(type)));
+    }
+
+    <T> CompletableFuture<T> callAsync(int node, String method, String path, Object body, TypeReference<T> type) {
+        return callAsync(node, method, path, body, objectMapper.constructType(type));
+    }
+
+    /**
+     * Sends the same change to every other node without waiting; a node that misses it only logs a warning, as the
+     * change is in the database and is picked up by that node at its next start.
+     */
+    void broadcast(String path, Object body) {
+        if (!isPartitioned()) return;
+        for (int node : peers()) {
+            callAsync(node, "POST", path, body, objectMapper.constructType(Void.class)).exceptionally(e -> {
+                log.warn("Could not send {} to {}: {}", path, nodes.get(node), e.getCause() == null ? e : e.getCause().getMessage());
+                return null;
+            });
+        }
+    }
+
+    private <T> CompletableFuture<T> callAsync(int node, String method, String path, Object body, JavaType type) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var request = HttpRequest.newBuilder(nodes.get(node).resolve(INTERNAL_PATH.substring(1) + path))
+                .timeout(timeout)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .header(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8))
+                .method(method, HttpRequest.BodyPublishers.ofByteArray(json))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).handle((response, e) -> {
+            if (e != null) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Node %s is unreachable".formatted(nodes.get(node)), e);
+            }
+            if (response.statusCode() != HttpStatus.OK.value()) {
+                throw new ResponseStatusException(HttpStatusCode.valueOf(response.statusCode()), message(response.body()));
+            }
+            try {
+                return type.getRawClass() == Void.class ? null : objectMapper.readValue(response.body(), type);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * The message of the node's error response, so the client sees the same error as from the owner itself.
+     */
+    private String message(byte[] body) {
+        try {
+            var message = objectMapper.readTree(body).path("message");
+            return message.isTextual() ? message.asText() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    private static URI baseUri(String url) {
+        var base = url.strip();
+        return URI.create(base.endsWith("/") ? base : base + "/");
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
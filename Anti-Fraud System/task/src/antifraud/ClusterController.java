@@ -0,0 +1,56 @@
+package antifraud;
+
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Changes to shared state sent by the other nodes of a partitioned {@link Cluster} after they stored them: the
+ * blocklists are updated in the {@link BlocklistCache}, the rules reloaded from the database and a changed user
+ * dropped from the {@link CredentialCache}. A node that misses a user change serves it until the entry expires.
+ */
+@RestController
+@RequestMapping(Cluster.INTERNAL_PATH)
+public class ClusterController {
+    private final BlocklistCache blocklistCache;
+    private final RuleService ruleService;
+    private final CredentialCache credentialCache;
+
+    ClusterController(BlocklistCache blocklistCache, RuleService ruleService, CredentialCache credentialCache) {
+        this.blocklistCache = blocklistCache;
+        this.ruleService = ruleService;
+        this.credentialCache = credentialCache;
+    }
+
+    @PostMapping("/blocklist")
+    void blocklist(@RequestBody BlocklistChange change) {
+        switch (change.list()) {
+            case IP -> {
+                if (change.add()) blocklistCache.addIps(change.values());
+                else change.values().forEach(blocklistCache::removeIp);
+            }
+            case CARD -> {
+                if (change.add()) blocklistCache.addCards(change.values());
+                else change.values().forEach(blocklistCache::removeCard);
+            }
+        }
+    }
+
+    @PostMapping("/rules")
+    void reloadRules() {
+        ruleService.reload();
+    }
+
+    @PostMapping("/credentials")
+    void invalidateCredentials(@RequestBody CredentialChange change) {
+        credentialCache.invalidate(change.username());
+    }
+
+    enum Blocklist {IP, CARD}
+
+    record BlocklistChange(Blocklist list, boolean add, List<String> values) {
+    }
+
+    record CredentialChange(String username) {
+    }
+}
@@ -0,0 +1,280 @@
+package antifraud;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the recent transactions of every card in memory so the region and IP correlation checks
+ * can be answered without a query.
+ * <p>
+ * All transactions dated at or after {@code horizon} are known; a query whose window starts before
+ * the horizon (of the whole window or of a single card that had to drop events) is not covered and
+ * the caller falls back to the repository. Events are kept for the longest correlation rule window, set by
+ * {@link TransactionChecker} whenever the rules change; a longer window is covered once enough time has passed.
+ * <p>
+ * Loaded at startup by the {@link StateSnapshot}, or by the {@link CardViews} from their snapshot and event log.
+ */
+@Component
+class CorrelationWindow {
+    private final TransactionRepository transactionRepository;
+    private final int maxEventsPerCard;
+    private final Map<String, CardEvents> cards = new ConcurrentHashMap<>();
+    private volatile long horizon = Long.MAX_VALUE;
+    private volatile long latest = Long.MIN_VALUE;
+    private volatile Duration retention = Duration.ofHours(1);
+
+    CorrelationWindow(TransactionRepository transactionRepository,
+                      @Value("${antifraud.correlation.max-events-per-card:256}") int maxEventsPerCard) {
+        this.transactionRepository = transactionRepository;
+        this.maxEventsPerCard = maxEventsPerCard;
+    }
+
+    /**
+     * Replaces the window with the transactions within the retention of the newest one; the caller provides the
+     * surrounding read-only database transaction the history is streamed in.
+     */
+    void warmUp() {
+        cards.clear();
+        horizon = Long.MAX_VALUE;
+        var newest = transactionRepository.findTopByOrderByDateDesc();
+        if (newest.isEmpty()) {
+            horizon = Long.MIN_VALUE;
+            return;
+        }
+        var from = newest.get().date.minus(retention);
+        try (var transactions = transactionRepository.streamByDateGreaterThanEqualOrderById(from)) {
+            transactions.forEach(this::record);
+        }
+        horizon = nanos(from);
+    }
+
+    void retain(Duration window) {
+        retention = window;
+    }
+
+    void record(Transaction t) {
+        record(t.number, nanos(t.date), t.region, IPv4.pack(t.ip));
+    }
+
+    void record(String number, long date, Region region, int ip) {
+        if (date > latest) latest = date;
+        cards.compute(number, (n, events) -> {
+            if (events == null) events = new CardEvents();
+            events.add(date, region, ip, maxEventsPerCard);
+            return events;
+        });
+    }
+
+    void forget(Transaction t) {
+        int ip = IPv4.pack(t.ip);
+        cards.computeIfPresent(t.number, (number, events) -> events.remove(nanos(t.date), t.region, ip) ? null : events);
+    }
+
+    OptionalInt otherRegions(String number, Region region, LocalDateTime from, LocalDateTime to) {
+        long start = nanos(from);
+        if (start < horizon) return OptionalInt.empty();
+        var events = cards.get(number);
+        if (events == null) return OptionalInt.of(0);
+        return events.otherRegions(region, start, nanos(to));
+    }
+
+    OptionalInt otherIps(String number, String ip, LocalDateTime from, LocalDateTime to) {
+        long start = nanos(from);
+        if (start < horizon) return OptionalInt.empty();
+        var events = cards.get(number);
+        if (events == null) return OptionalInt.of(0);
+        return events.otherIps(IPv4.pack(ip), start, nanos(to));
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.correlation.eviction-interval:PT1M}")
+    void evict() {
+        if (latest == Long.MIN_VALUE || horizon == Long.MAX_VALUE) return;
+        long cutoff = latest - retention.toNanos();
+        if (cutoff <= horizon) return;
+        horizon = cutoff;
+        for (var number : cards.keySet()) {
+            cards.computeIfPresent(number, (n, events) -> events.evictBefore(cutoff) ? null : events);
+        }
+    }
+
+    /**
+     * Writes the horizon and all events; concurrent records may or may not be included.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(horizon);
+        out.writeLong(latest);
+        for (var entry : cards.entrySet()) {
+            long number = CardNumber.pack(entry.getKey());
+            if (number == CardNumber.INVALID) continue;
+            out.writeBoolean(true);
+            out.writeLong(number);
+            entry.getValue().write(out);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Replaces the window with one written by {@link #write}. Events recorded again afterwards are harmless,
+     * the correlation checks count distinct regions and IPs.
+     */
+    void read(DataInputStream in) throws IOException {
+        cards.clear();
+        long restoredHorizon = in.readLong();
+        latest = in.readLong();
+        while (in.readBoolean()) {
+            var number = CardNumber.unpack(in.readLong());
+            cards.put(number, CardEvents.read(in, maxEventsPerCard));
+        }
+        horizon = restoredHorizon;
+    }
+
+    static long nanos(LocalDateTime date) {
+        return date.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + date.getNano();
+    }
+
+    /**
+     * Events of one card, sorted by date. Regions are stored as enum ordinals and IPs as packed ints.
+     * Also used by {@link ReplayRunner} for its per-worker state.
+     */
+    static class CardEvents {
+        private long horizon = Long.MIN_VALUE;
+        private long[] dates = new long[4];
+        private byte[] regions = new byte[4];
+        private int[] ips = new int[4];
+        private int size;
+
+        synchronized void add(long date, Region region, int ip, int maxEvents) {
+            if (size == maxEvents) {
+                if (date < dates[0]) {
+                    horizon = Math.max(horizon, date + 1);
+                    return;
+                }
+                horizon = Math.max(horizon, dates[0] + 1);
+                remove(1);
+            }
+            if (size == dates.length) {
+                int capacity = Math.min(size * 2, maxEvents);
+                dates = Arrays.copyOf(dates, capacity);
+                regions = Arrays.copyOf(regions, capacity);
+                ips = Arrays.copyOf(ips, capacity);
+            }
+            int i = size;
+            while (i > 0 && dates[i - 1] > date) i--;
+            System.arraycopy(dates, i, dates, i + 1, size - i);
+            System.arraycopy(regions, i, regions, i + 1, size - i);
+            System.arraycopy(ips, i, ips, i + 1, size - i);
+            dates[i] = date;
+            regions[i] = (byte) region.ordinal();
+            ips[i] = ip;
+            size++;
+        }
+
+        synchronized OptionalInt otherRegions(Region region, long from, long to) {
+            if (from < horizon) return OptionalInt.empty();
+            int mask = 0;
+            for (int i = first(from); i < size && dates[i] <= to; i++) {
+                mask |= 1 << regions[i];
+            }
+            mask &= ~(1 << region.ordinal());
+            return OptionalInt.of(Integer.bitCount(mask));
+        }
+
+        synchronized OptionalInt otherIps(int ip, long from, long to) {
+            if (from < horizon) return OptionalInt.empty();
+            int[] seen = new int[4];
+            int count = 0;
+            outer:
+            for (int i = first(from); i < size && dates[i] <= to; i++) {
+                if (ips[i] == ip) continue;
+                for (int j = 0; j < count; j++) {
+                    if (seen[j] == ips[i]) continue outer;
+                }
+                if (count == seen.length) seen = Arrays.copyOf(seen, count * 2);
+                seen[count++] = ips[i];
+            }
+            return OptionalInt.of(count);
+        }
+
+        /**
+         * Removes one occurrence of the given event; returns whether the card has no events left.
+         */
+        synchronized boolean remove(long date, Region region, int ip) {
+            for (int i = first(date); i < size && dates[i] == date; i++) {
+                if (regions[i] == region.ordinal() && ips[i] == ip) {
+                    System.arraycopy(dates, i + 1, dates, i, size - i - 1);
+                    System.arraycopy(regions, i + 1, regions, i, size - i - 1);
+                    System.arraycopy(ips, i + 1, ips, i, size - i - 1);
+                    size--;
+                    break;
+                }
+            }
+            return size == 0 && horizon == Long.MIN_VALUE;
+        }
+
+        /**
+         * Drops all events dated before {@code cutoff}; returns whether the card has no events left.
+         */
+        synchronized boolean evictBefore(long cutoff) {
+            int n = first(cutoff);
+            if (n > 0) remove(n);
+            return size == 0;
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            out.writeLong(horizon);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(dates[i]);
+                out.writeByte(regions[i]);
+                out.writeInt(ips[i]);
+            }
+        }
+
+        static CardEvents read(DataInputStream in, int maxEvents) throws IOException {
+            var events = new CardEvents();
+            events.horizon = in.readLong();
+            int size = in.readInt();
+            if (size < 0 || size > maxEvents) throw new IOException("Corrupt correlation snapshot");
+            int capacity = Math.max(4, size);
+            events.dates = new long[capacity];
+            events.regions = new byte[capacity];
+            events.ips = new int[capacity];
+            for (int i = 0; i < size; i++) {
+                events.dates[i] = in.readLong();
+                events.regions[i] = in.readByte();
+                events.ips[i] = in.readInt();
+            }
+            events.size = size;
+            return events;
+        }
+
+        private int first(long from) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (dates[mid] < from) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private void remove(int n) {
+            System.arraycopy(dates, n, dates, 0, size - n);
+            System.arraycopy(regions, n, regions, 0, size - n);
+            System.arraycopy(ips, n, ips, 0, size - n);
+            size -= n;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package antifraud;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers credentials that recently passed the full password check, so a repeated Basic auth request
+ * costs an HMAC instead of a user lookup and a BCrypt match. Only an HMAC of the password under a
+ * per-process random key is kept. Entries expire after {@code antifraud.auth.cache.ttl} and the cache
+ * holds at most {@code antifraud.auth.cache.max-size} users, evicting the least recently used.
+ */
+@Component
+class CredentialCache {
+    private final long ttlNanos;
+    private final int maxSize;
+    private final SecretKeySpec key;
+    private final Map<String, Entry> entries;
+    private long generation;
+
+    CredentialCache(@Value("${antifraud.auth.cache.ttl:PT5M}") Duration ttl,
+                    @Value("${antifraud.auth.cache.max-size:10000}") int maxSize) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = maxSize;
+        var secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.entries = new LinkedHashMap<>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    UserDetails get(String username, String password) {
+        if (maxSize <= 0) return null;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(username);
+        }
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.created > ttlNanos) {
+            invalidate(username, entry);
+            return null;
+        }
+        return MessageDigest.isEqual(entry.digest, digest(password)) ? entry.user : null;
+    }
+
+    /**
+     * Returns a token to pass to {@link #put}; taken before the user is loaded so that an invalidation
+     * racing with the lookup prevents caching the stale user.
+     */
+    long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    void put(UserDetails user, String password, long generation) {
+        if (maxSize <= 0) return;
+        var entry = new Entry(user, digest(password), System.nanoTime());
+        synchronized (entries) {
+            if (this.generation == generation) entries.put(user.getUsername(), entry);
+        }
+    }
+
+    void invalidate(String username) {
+        synchronized (entries) {
+            generation++;
+            entries.remove(username);
+        }
+    }
+
+    private void invalidate(String username, Entry entry) {
+        synchronized (entries) {
+            entries.remove(username, entry);
+        }
+    }
+
+    private byte[] digest(String password) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Entry(UserDetails user, byte[] digest, long created) {
+    }
+}
@@ -0,0 +1,200 @@
+package antifraud;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Cuckoo filter of long keys: answers "definitely absent" or "maybe present" and, unlike a Bloom filter,
+ * supports removal. Every key leaves a fingerprint in one of two buckets of {@value #SLOTS} slots; the
+ * second bucket is derived from the first and the fingerprint alone (partial-key cuckoo hashing), so
+ * entries can be relocated without the original key.
+ * <p>
+ * The false positive rate is about {@code 2 * SLOTS / 2^fingerprintBits}. Fingerprints are stored in a
+ * short per slot, so the width is 4 to 16 bits. The table never grows; a full filter is replaced by a
+ * larger one. Not thread-safe for writers, but {@link #mightContain} only reads, so it can run under an
+ * optimistic read.
+ */
+class CuckooFilter {
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+    private static final int MAGIC = 0x434b4631; // "CKF1"
+    /** Tables are sized so they are at most this full, cuckoo insertion degrades sharply beyond ~95%. */
+    private static final double LOAD = 0.9;
+
+    private final int fingerprintBits;
+    private final short[] table;
+    private final int bucketMask;
+    private int size;
+    private int victimBucket = -1;
+    private short victimFingerprint;
+    private long kick = 0x9e3779b97f4a7c15L;
+
+    CuckooFilter(int capacity, int fingerprintBits) {
+        this(fingerprintBits, new short[buckets(capacity) * SLOTS]);
+    }
+
+    private CuckooFilter(int fingerprintBits, short[] table) {
+        if (fingerprintBits < 4 || fingerprintBits > 16) throw new IllegalArgumentException("Fingerprint bits must be 4 to 16");
+        this.fingerprintBits = fingerprintBits;
+        this.table = table;
+        this.bucketMask = table.length / SLOTS - 1;
+    }
+
+    static int fingerprintBits(double falsePositiveRate) {
+        int bits = (int) Math.ceil(Math.log(2.0 * SLOTS / falsePositiveRate) / Math.log(2));
+        return Math.max(4, Math.min(16, bits));
+    }
+
+    static long bytes(int capacity) {
+        return (long) buckets(capacity) * SLOTS * Short.BYTES;
+    }
+
+    private static int buckets(int capacity) {
+        long needed = Math.max(1, (long) Math.ceil(capacity / (SLOTS * LOAD)));
+        if (needed > (1 << 28)) throw new IllegalArgumentException("Capacity too large: " + capacity);
+        return needed <= 1 ? 1 : Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    boolean mightContain(long key) {
+        long hash = mix(key);
+        short fingerprint = fingerprint(hash);
+        int first = (int) hash & bucketMask;
+        int second = alternate(first, fingerprint);
+        if (victimBucket >= 0 && victimFingerprint == fingerprint && (victimBucket == first || victimBucket == second)) return true;
+        for (int i = 0; i < SLOTS; i++) {
+            if (table[first * SLOTS + i] == fingerprint || table[second * SLOTS + i] == fingerprint) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the filter is full; the key is then not added and the filter must be rebuilt larger
+     */
+    boolean add(long key) {
+        if (victimBucket >= 0) return false;
+        long hash = mix(key);
+        short fingerprint = fingerprint(hash);
+        int bucket = (int) hash & bucketMask;
+        if (put(bucket, fingerprint) || put(alternate(bucket, fingerprint), fingerprint)) {
+            size++;
+            return true;
+        }
+        if (((kick = kick * 6364136223846793005L + 1442695040888963407L) >>> 63) == 1) bucket = alternate(bucket, fingerprint);
+        for (int n = 0; n < MAX_KICKS; n++) {
+            int slot = bucket * SLOTS + (int) ((kick = kick * 6364136223846793005L + 1442695040888963407L) >>> 62);
+            short evicted = table[slot];
+            table[slot] = fingerprint;
+            fingerprint = evicted;
+            bucket = alternate(bucket, fingerprint);
+            if (put(bucket, fingerprint)) {
+                size++;
+                return true;
+            }
+        }
+        // the last evicted fingerprint is parked so no earlier key is lost
+        victimBucket = bucket;
+        victimFingerprint = fingerprint;
+        size++;
+        return true;
+    }
+
+    boolean remove(long key) {
+        long hash = mix(key);
+        short fingerprint = fingerprint(hash);
+        int first = (int) hash & bucketMask;
+        int second = alternate(first, fingerprint);
+        if (victimBucket >= 0 && victimFingerprint == fingerprint && (victimBucket == first || victimBucket == second)) {
+            victimBucket = -1;
+            size--;
+            return true;
+        }
+        if (delete(first, fingerprint) || delete(second, fingerprint)) {
+            size--;
+            if (victimBucket >= 0 && put(victimBucket, victimFingerprint)) victimBucket = -1;
+            return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long bytes() {
+        return (long) table.length * Short.BYTES;
+    }
+
+    int fingerprintBits() {
+        return fingerprintBits;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(fingerprintBits);
+        out.writeInt(table.length);
+        out.writeInt(size);
+        out.writeInt(victimBucket);
+        out.writeShort(victimFingerprint);
+        for (short slot : table) out.writeShort(slot);
+    }
+
+    /**
+     * @throws IOException also when the input is not a filter snapshot
+     */
+    static CuckooFilter read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a cuckoo filter snapshot");
+        int fingerprintBits = in.readInt();
+        int length = in.readInt();
+        if (length < SLOTS || Integer.bitCount(length / SLOTS) != 1 || length % SLOTS != 0) throw new IOException("Corrupt cuckoo filter snapshot");
+        var filter = new CuckooFilter(fingerprintBits, new short[length]);
+        filter.size = in.readInt();
+        filter.victimBucket = in.readInt();
+        filter.victimFingerprint = in.readShort();
+        for (int i = 0; i < length; i++) filter.table[i] = in.readShort();
+        return filter;
+    }
+
+    private boolean put(int bucket, short fingerprint) {
+        int base = bucket * SLOTS;
+        for (int i = 0; i < SLOTS; i++) {
+            if (table[base + i] == 0) {
+                table[base + i] = fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean delete(int bucket, short fingerprint) {
+        int base = bucket * SLOTS;
+        for (int i = 0; i < SLOTS; i++) {
+            if (table[base + i] == fingerprint) {
+                table[base + i] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Zero marks an empty slot, so it is never a fingerprint.
+     */
+    private short fingerprint(long hash) {
+        int fingerprint = (int) (hash >>> 32) & ((1 << fingerprintBits) - 1);
+        return (short) (fingerprint == 0 ? 1 : fingerprint);
+    }
+
+    private int alternate(int bucket, short fingerprint) {
+        return (bucket ^ ((fingerprint & 0xffff) * 0x5bd1e995)) & bucketMask;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,25 @@
+package antifraud;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConditionalOnProperty(name = "antifraud.write-behind.enabled", havingValue = "false", matchIfMissing = true)
+class DirectTransactionWriter implements TransactionWriter {
+    private final TransactionRepository transactionRepository;
+    private final TransactionIdAllocator transactionIds;
+
+    DirectTransactionWriter(TransactionRepository transactionRepository, TransactionIdAllocator transactionIds) {
+        this.transactionRepository = transactionRepository;
+        this.transactionIds = transactionIds;
+    }
+
+    @Override
+    public Transaction write(Transaction transaction) {
+        try {
+            return transactionRepository.save(transaction);
+        } finally {
+            transactionIds.release(transaction.id);
+        }
+    }
+}
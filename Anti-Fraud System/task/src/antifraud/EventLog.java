@@ -0,0 +1,242 @@
+package antifraud;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link Event}s in segment files of fixed-size binary records, each named after the
+ * sequence number of its first record. A new segment is started once the current one reaches the segment
+ * size. Every record carries a CRC; on open, a torn record at the end of the last segment is cut off.
+ * <p>
+ * Appending assigns the next sequence number and runs a callback under the same lock, so the callback
+ * sees the events in sequence order and {@link #locked} gives a consistent point to take a snapshot at.
+ */
+class EventLog implements Closeable {
+    static final int RECORD = 48;
+    private static final int CRC_OFFSET = RECORD - 4;
+    private static final String SUFFIX = ".events";
+    private static final Region[] REGIONS = Region.values();
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+    private final CRC32 crc = new CRC32();
+    private FileChannel segment;
+    private long nextSequence;
+
+    EventLog(Path directory, long segmentBytes, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(RECORD, segmentBytes / RECORD * RECORD);
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        var segments = segments();
+        if (segments.isEmpty()) {
+            open(1);
+        } else {
+            var last = segments.get(segments.size() - 1);
+            long first = firstSequence(last);
+            long valid = 0;
+            try (var in = reader(last)) {
+                var buffer = new byte[RECORD];
+                while (read(in, buffer) && decode(buffer) != null) valid++;
+            }
+            segment = FileChannel.open(last, StandardOpenOption.WRITE);
+            segment.truncate(valid * RECORD);
+            segment.position(valid * RECORD);
+            nextSequence = first + valid;
+        }
+    }
+
+    /**
+     * @return the sequence number of the last appended event, 0 if there is none
+     */
+    long lastSequence() {
+        lock.lock();
+        try {
+            return nextSequence - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Event append(Event.Type type, Transaction t, Consumer<Event> apply) {
+        lock.lock();
+        try {
+            if (segment.position() + RECORD > segmentBytes) roll();
+            var event = new Event(nextSequence, type, t.id, t.amount, IPv4.pack(t.ip), CardNumber.pack(t.number),
+                    CorrelationWindow.nanos(t.date), t.region, t.result, type == Event.Type.FEEDBACK ? t.feedback : null);
+            encode(event);
+            while (record.hasRemaining()) segment.write(record);
+            if (fsync) segment.force(false);
+            nextSequence++;
+            apply.accept(event);
+            return event;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Calls {@code apply} for every event after {@code sequence}, in order.
+     */
+    void replay(long sequence, Consumer<Event> apply) throws IOException {
+        var segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= sequence + 1) continue;
+            try (var in = reader(segments.get(i))) {
+                var buffer = new byte[RECORD];
+                while (read(in, buffer)) {
+                    var event = decode(buffer);
+                    if (event == null) break;
+                    if (event.sequence() > sequence) apply.accept(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs {@code action} while no event can be appended.
+     */
+    <T> T locked(Supplier<T> action) {
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments holding only events up to {@code sequence}, e.g. once they are covered by a snapshot.
+     */
+    void deleteThrough(long sequence) throws IOException {
+        lock.lock();
+        try {
+            var segments = segments();
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                if (firstSequence(segments.get(i + 1)) > sequence + 1) break;
+                Files.delete(segments.get(i));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all events and continues numbering after {@code sequence}.
+     */
+    void reset(long sequence) throws IOException {
+        lock.lock();
+        try {
+            segment.close();
+            for (var path : segments()) Files.delete(path);
+            open(sequence + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            segment.force(true);
+            segment.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll() throws IOException {
+        segment.force(true);
+        segment.close();
+        open(nextSequence);
+    }
+
+    private void open(long first) throws IOException {
+        segment = FileChannel.open(directory.resolve("%020d%s".formatted(first, SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        nextSequence = first;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return new ArrayList<>(files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList());
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static DataInputStream reader(Path segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16));
+    }
+
+    private static boolean read(DataInputStream in, byte[] buffer) throws IOException {
+        try {
+            in.readFully(buffer);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void encode(Event e) {
+        record.clear();
+        record.putLong(0, e.sequence());
+        record.putInt(8, e.transactionId());
+        record.putLong(12, e.amount());
+        record.putInt(20, e.ip());
+        record.putLong(24, e.number());
+        record.putLong(32, e.date());
+        record.put(40, (byte) e.type().ordinal());
+        record.put(41, (byte) e.region().ordinal());
+        record.put(42, (byte) e.result().ordinal());
+        record.put(43, (byte) (e.feedback() == null ? -1 : e.feedback().ordinal()));
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt(CRC_OFFSET, (int) crc.getValue());
+    }
+
+    private static Event decode(byte[] buffer) {
+        var crc = new CRC32();
+        crc.update(buffer, 0, CRC_OFFSET);
+        var in = ByteBuffer.wrap(buffer);
+        if (in.getInt(CRC_OFFSET) != (int) crc.getValue()) return null;
+        byte feedback = in.get(43);
+        return new Event(in.getLong(0), Event.Type.values()[in.get(40)], in.getInt(8), in.getLong(12), in.getInt(20),
+                in.getLong(24), in.getLong(32), REGIONS[in.get(41)], RESULTS[in.get(42)], feedback < 0 ? null : RESULTS[feedback]);
+    }
+
+    /**
+     * A scored transaction or the feedback on one. Numbers, IPs and dates are packed as in the
+     * {@link CorrelationWindow}; {@code feedback} is only set on feedback events.
+     */
+    record Event(long sequence, Type type, int transactionId, long amount, int ip, long number, long date,
+                 Region region, TransactionResult result, TransactionResult feedback) {
+        enum Type {SCORED, FEEDBACK}
+    }
+}
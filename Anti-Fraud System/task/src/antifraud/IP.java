@@ -1,5 +1,6 @@
 package antifraud;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
@@ -13,13 +14,13 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.util.Arrays;
 
 @Entity
 public class IP {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     public int id;
+    @Column(unique = true)
     public String ip;
 
     public IP(String ip) {
@@ -30,9 +31,7 @@ public class IP {
     }
 
     public static boolean verify(String ip) {
-        var parts = Arrays.stream(ip.split("\\.")).mapToInt(Integer::parseInt).toArray();
-        if (parts.length != 4) return false;
-        return !Arrays.stream(parts).anyMatch(b -> b < 0 || b > 255);
+        return IPv4.isValid(ip);
     }
 }
 
@@ -1,12 +1,19 @@
 package antifraud;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 interface IpRepository extends CrudRepository<IP, Integer> {
     Optional<IP> findByIp(String ip);
     boolean existsByIp(String ip);
+    Optional<IP> findTopByOrderByIdDesc();
     List<IP> findByOrderById();
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<IP> streamByOrderById();
 }
@@ -0,0 +1,63 @@
+package antifraud;
+
+/**
+ * An IPv4 address packed into an int, most significant octet first.
+ */
+record IPv4(int bits) {
+    static final long INVALID = -1;
+
+    /**
+     * Parses dotted-quad notation without allocating or throwing. It accepts exactly what the former
+     * {@code split("\\.")} and {@code Integer.parseInt} validator accepted, so every address already stored parses:
+     * trailing dots, a sign before an octet ({@code -} only on zero) and any Unicode decimal digits.
+     *
+     * @return the address as an unsigned 32-bit value, or {@link #INVALID} when the input is malformed
+     */
+    static long parse(CharSequence ip) {
+        int length = ip.length();
+        while (length > 0 && ip.charAt(length - 1) == '.') length--;
+        long bits = 0;
+        int octets = 0;
+        int octet = -1;
+        boolean negative = false;
+        for (int i = 0; i < length; i++) {
+            char c = ip.charAt(i);
+            int digit = Character.digit(c, 10);
+            if (c == '.') {
+                if (octet < 0 || octets == 3 || negative && octet != 0) return INVALID;
+                bits = bits << 8 | octet;
+                octets++;
+                octet = -1;
+                negative = false;
+            } else if (digit >= 0) {
+                octet = octet < 0 ? digit : octet * 10 + digit;
+                if (octet > 255) return INVALID;
+            } else if ((c == '+' || c == '-') && octet < 0 && !negative && (i == 0 || ip.charAt(i - 1) == '.')) {
+                negative = c == '-';
+            } else {
+                return INVALID;
+            }
+        }
+        if (octet < 0 || octets != 3 || negative && octet != 0) return INVALID;
+        return bits << 8 | octet;
+    }
+
+    static boolean isValid(CharSequence ip) {
+        return parse(ip) != INVALID;
+    }
+
+    static IPv4 of(CharSequence ip) {
+        return new IPv4(pack(ip));
+    }
+
+    static int pack(CharSequence ip) {
+        long bits = parse(ip);
+        if (bits == INVALID) throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+        return (int) bits;
+    }
+
+    @Override
+    public String toString() {
+        return (bits >>> 24) + "." + (bits >>> 16 & 0xff) + "." + (bits >>> 8 & 0xff) + "." + (bits & 0xff);
+    }
+}
@@ -0,0 +1,20 @@
+package antifraud;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores a dotted-quad IP as its packed int. Applied by the {@code compact} profile, see {@code META-INF/compact-orm.xml}.
+ */
+@Converter
+class IPv4Converter implements AttributeConverter<String, Integer> {
+    @Override
+    public Integer convertToDatabaseColumn(String ip) {
+        return ip == null ? null : IPv4.pack(ip);
+    }
+
+    @Override
+    public String convertToEntityAttribute(Integer bits) {
+        return bits == null ? null : new IPv4(bits).toString();
+    }
+}
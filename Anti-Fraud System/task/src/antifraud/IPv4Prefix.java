@@ -0,0 +1,47 @@
+package antifraud;
+
+/**
+ * An IPv4 network in CIDR notation. A plain address is the /32 prefix and prints without a length, so
+ * existing single-address entries keep their form.
+ */
+record IPv4Prefix(int bits, int length) {
+    /**
+     * @return the prefix, or {@code null} when the input is malformed or has bits set beyond the prefix length
+     */
+    static IPv4Prefix parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        long bits = IPv4.parse(slash < 0 ? cidr : cidr.substring(0, slash));
+        if (bits == IPv4.INVALID) return null;
+        int length = 32;
+        if (slash >= 0) {
+            var suffix = cidr.substring(slash + 1);
+            if (suffix.isEmpty() || suffix.length() > 2 || !Character.isDigit(suffix.charAt(0))
+                    || !Character.isDigit(suffix.charAt(suffix.length() - 1))) return null;
+            length = Integer.parseInt(suffix);
+            if (length > 32) return null;
+        }
+        if ((bits & ~mask(length) & 0xffffffffL) != 0) return null;
+        return new IPv4Prefix((int) bits, length);
+    }
+
+    static boolean isValid(String cidr) {
+        return parse(cidr) != null;
+    }
+
+    static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    /**
+     * A unique non-negative key per prefix, for hash sets.
+     */
+    long key() {
+        return (bits & 0xffffffffL) << 6 | length;
+    }
+
+    @Override
+    public String toString() {
+        var address = new IPv4(bits).toString();
+        return length == 32 ? address : address + "/" + length;
+    }
+}
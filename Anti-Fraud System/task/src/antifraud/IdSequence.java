@@ -0,0 +1,23 @@
+package antifraud;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+/**
+ * The next id a {@link TransactionIdAllocator} may reserve a block from, shared by all instances on the database;
+ * the table is created from this entity and read and written with plain JDBC.
+ */
+@Entity
+class IdSequence {
+    @Id
+    String name;
+    int nextId;
+
+    public IdSequence() {
+    }
+
+    IdSequence(String name, int nextId) {
+        this.name = name;
+        this.nextId = nextId;
+    }
+}
@@ -0,0 +1,123 @@
+package antifraud;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing set of primitive longs with linear probing. Not thread-safe for writers, but
+ * {@link #contains} only reads the table once, so it can run under an optimistic read.
+ */
+class LongHashSet {
+    private static final long EMPTY = 0;
+
+    private long[] keys = new long[16];
+    private boolean hasEmptyKey;
+    private int size;
+
+    boolean contains(long key) {
+        if (key == EMPTY) return hasEmptyKey;
+        long[] table = keys;
+        int mask = table.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = table[i];
+            if (k == key) return true;
+            if (k == EMPTY) return false;
+        }
+    }
+
+    boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey) return false;
+            hasEmptyKey = true;
+            size++;
+            return true;
+        }
+        if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        size++;
+        return true;
+    }
+
+    boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) return false;
+            hasEmptyKey = false;
+            size--;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+        // backward-shift deletion keeps probe sequences intact without tombstones
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Memory taken by the table, which doubles once it is half full.
+     */
+    long bytes() {
+        return (long) keys.length * Long.BYTES;
+    }
+
+    /**
+     * Memory a set of {@code size} keys grows to, see {@link #bytes()}.
+     */
+    static long bytes(long size) {
+        long length = 16;
+        while (length < 2 * size) length *= 2;
+        return length * Long.BYTES;
+    }
+
+    void forEach(LongConsumer action) {
+        if (hasEmptyKey) action.accept(EMPTY);
+        for (long key : keys) {
+            if (key != EMPTY) action.accept(key);
+        }
+    }
+
+    void clear() {
+        keys = new long[16];
+        hasEmptyKey = false;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] old = keys;
+        long[] table = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key == EMPTY) continue;
+            int i = mix(key) & mask;
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = key;
+        }
+        keys = table;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,278 @@
+package antifraud;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * IPv4 prefixes answering longest-prefix-match queries in two levels. Prefixes of up to /16 are expanded
+ * into a 64k-entry table indexed by the top 16 address bits; longer ones go into a path-compressed binary
+ * (Patricia) trie per /16, so a lookup is one table read plus a short walk through only the prefixes
+ * sharing the address's /16. Every trie node stores its full prefix and only branches where stored
+ * prefixes diverge, so there are fewer than two nodes per prefix. Adding and removing a long prefix touch
+ * a single path; a short prefix rewrites the table slots it covers.
+ * <p>
+ * Nodes live in one int array, {@value #STRIDE} ints each: prefix bits, length with a terminal flag, and
+ * the two children. Not thread-safe for writers, but {@link #longestMatch} reads the array reference once
+ * and bounds its walk, so under an optimistic read a concurrent write can give a wrong answer, never an
+ * exception or a loop.
+ */
+class PrefixTrie {
+    private static final int STRIDE = 4;
+    private static final int BITS = 0;
+    private static final int LENGTH = 1;
+    private static final int LEFT = 2;
+    private static final int RIGHT = 3;
+    private static final int TERMINAL = 1 << 8;
+    private static final int NIL = -1;
+    private static final int TABLE_BITS = 16;
+    /** The trie of short prefixes, only used to recompute the table after a removal. */
+    private static final int SHORT = 1 << TABLE_BITS;
+
+    private int[] nodes = new int[16 * STRIDE];
+    private int used;
+    private int free = NIL;
+    private final int[] roots = new int[SHORT + 1];
+    private final byte[] table = new byte[SHORT];
+    private int size;
+
+    PrefixTrie() {
+        clear();
+    }
+
+    /**
+     * @return the length of the longest stored prefix containing {@code address}, or -1 if there is none
+     */
+    int longestMatch(int address) {
+        int slot = address >>> (32 - TABLE_BITS);
+        int best = table[slot];
+        int[] nodes = this.nodes;
+        int node = roots[slot];
+        for (int depth = 0; depth <= 32 && node >= 0 && node + RIGHT < nodes.length; depth++) {
+            int length = nodes[node + LENGTH] & 0xff;
+            if (((address ^ nodes[node + BITS]) & IPv4Prefix.mask(length)) != 0) break;
+            if ((nodes[node + LENGTH] & TERMINAL) != 0) best = length;
+            if (length >= 32) break;
+            node = nodes[node + (bit(address, length) == 0 ? LEFT : RIGHT)];
+        }
+        return best;
+    }
+
+    boolean contains(int bits, int length) {
+        int node = find(rootOf(bits, length), bits, length);
+        return node != NIL && (nodes[node + LENGTH] & TERMINAL) != 0;
+    }
+
+    boolean add(int bits, int length) {
+        bits &= IPv4Prefix.mask(length);
+        int slot = rootOf(bits, length);
+        if (!insert(slot, bits, length)) return false;
+        size++;
+        if (slot == SHORT) {
+            for (int i = first(bits), last = i + span(length); i < last; i++) {
+                if (table[i] < length) table[i] = (byte) length;
+            }
+        }
+        return true;
+    }
+
+    private boolean insert(int slot, int bits, int length) {
+        int parent = NIL;
+        int node = roots[slot];
+        while (node != NIL) {
+            int nodeLength = lengthOf(node);
+            int common = Math.min(Math.min(length, nodeLength), Integer.numberOfLeadingZeros(bits ^ nodes[node + BITS]));
+            if (common < nodeLength) {
+                int replacement;
+                if (common == length) {
+                    replacement = allocate(bits, length, true);
+                    setChild(replacement, bit(nodes[node + BITS], length), node);
+                } else {
+                    replacement = allocate(bits & IPv4Prefix.mask(common), common, false);
+                    setChild(replacement, bit(nodes[node + BITS], common), node);
+                    setChild(replacement, bit(bits, common), allocate(bits, length, true));
+                }
+                replace(slot, parent, node, replacement);
+                return true;
+            }
+            if (length == nodeLength) {
+                if ((nodes[node + LENGTH] & TERMINAL) != 0) return false;
+                nodes[node + LENGTH] |= TERMINAL;
+                return true;
+            }
+            parent = node;
+            node = child(node, bit(bits, nodeLength));
+        }
+        int leaf = allocate(bits, length, true);
+        if (parent == NIL) roots[slot] = leaf;
+        else setChild(parent, bit(bits, lengthOf(parent)), leaf);
+        return true;
+    }
+
+    boolean remove(int bits, int length) {
+        bits &= IPv4Prefix.mask(length);
+        int slot = rootOf(bits, length);
+        if (!delete(slot, bits, length)) return false;
+        size--;
+        if (slot == SHORT) {
+            for (int i = first(bits), last = i + span(length); i < last; i++) {
+                if (table[i] == length) table[i] = (byte) shortMatch(i << (32 - TABLE_BITS));
+            }
+        }
+        return true;
+    }
+
+    private boolean delete(int slot, int bits, int length) {
+        int grandparent = NIL;
+        int parent = NIL;
+        int node = roots[slot];
+        while (node != NIL && lengthOf(node) < length) {
+            if (((bits ^ nodes[node + BITS]) & IPv4Prefix.mask(lengthOf(node))) != 0) return false;
+            grandparent = parent;
+            parent = node;
+            node = child(node, bit(bits, lengthOf(node)));
+        }
+        if (node == NIL || lengthOf(node) != length || nodes[node + BITS] != bits || (nodes[node + LENGTH] & TERMINAL) == 0) {
+            return false;
+        }
+        nodes[node + LENGTH] &= ~TERMINAL;
+        int left = nodes[node + LEFT];
+        int right = nodes[node + RIGHT];
+        if (left != NIL && right != NIL) return true;
+        replace(slot, parent, node, left != NIL ? left : right);
+        release(node);
+        // a branch node left with one child no longer separates anything
+        if (parent != NIL && (nodes[parent + LENGTH] & TERMINAL) == 0) {
+            int remaining = nodes[parent + LEFT] != NIL ? nodes[parent + LEFT] : nodes[parent + RIGHT];
+            if (nodes[parent + LEFT] == NIL || nodes[parent + RIGHT] == NIL) {
+                replace(slot, grandparent, parent, remaining);
+                release(parent);
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int node = 0; node < used; node += STRIDE) {
+            if ((nodes[node + LENGTH] & TERMINAL) != 0) {
+                out.writeInt(nodes[node + BITS]);
+                out.writeByte(nodes[node + LENGTH] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Adds the prefixes written by {@link #write}.
+     */
+    void read(DataInputStream in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            int bits = in.readInt();
+            int length = in.readUnsignedByte();
+            if (length > 32) throw new IOException("Corrupt prefix length " + length);
+            add(bits, length);
+        }
+    }
+
+    void clear() {
+        nodes = new int[16 * STRIDE];
+        used = 0;
+        free = NIL;
+        Arrays.fill(roots, NIL);
+        Arrays.fill(table, (byte) -1);
+        size = 0;
+    }
+
+    private static int rootOf(int bits, int length) {
+        return length <= TABLE_BITS ? SHORT : bits >>> (32 - TABLE_BITS);
+    }
+
+    private static int first(int bits) {
+        return bits >>> (32 - TABLE_BITS);
+    }
+
+    private static int span(int length) {
+        return 1 << (TABLE_BITS - length);
+    }
+
+    private int shortMatch(int address) {
+        int best = -1;
+        int node = roots[SHORT];
+        while (node != NIL) {
+            int length = lengthOf(node);
+            if (((address ^ nodes[node + BITS]) & IPv4Prefix.mask(length)) != 0) break;
+            if ((nodes[node + LENGTH] & TERMINAL) != 0) best = length;
+            if (length >= TABLE_BITS) break;
+            node = child(node, bit(address, length));
+        }
+        return best;
+    }
+
+    private int find(int slot, int bits, int length) {
+        bits &= IPv4Prefix.mask(length);
+        int node = roots[slot];
+        while (node != NIL && lengthOf(node) < length) {
+            if (((bits ^ nodes[node + BITS]) & IPv4Prefix.mask(lengthOf(node))) != 0) return NIL;
+            node = child(node, bit(bits, lengthOf(node)));
+        }
+        return node != NIL && lengthOf(node) == length && nodes[node + BITS] == bits ? node : NIL;
+    }
+
+    private int lengthOf(int node) {
+        return nodes[node + LENGTH] & 0xff;
+    }
+
+    private int child(int node, int bit) {
+        return nodes[node + (bit == 0 ? LEFT : RIGHT)];
+    }
+
+    private void setChild(int node, int bit, int child) {
+        nodes[node + (bit == 0 ? LEFT : RIGHT)] = child;
+    }
+
+    private void replace(int slot, int parent, int node, int replacement) {
+        if (parent == NIL) roots[slot] = replacement;
+        else if (nodes[parent + LEFT] == node) nodes[parent + LEFT] = replacement;
+        else nodes[parent + RIGHT] = replacement;
+    }
+
+    private static int bit(int bits, int index) {
+        return (bits >>> (31 - index)) & 1;
+    }
+
+    /**
+     * The node is fully written before the caller links it in, so readers never see a half-built node.
+     */
+    private int allocate(int bits, int length, boolean terminal) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = nodes[node + LEFT];
+        } else {
+            if (used + STRIDE > nodes.length) {
+                var grown = new int[nodes.length * 2];
+                System.arraycopy(nodes, 0, grown, 0, used);
+                nodes = grown;
+            }
+            node = used;
+            used += STRIDE;
+        }
+        nodes[node + BITS] = bits;
+        nodes[node + LENGTH] = length | (terminal ? TERMINAL : 0);
+        nodes[node + LEFT] = NIL;
+        nodes[node + RIGHT] = NIL;
+        return node;
+    }
+
+    private void release(int node) {
+        nodes[node + LENGTH] = 0;
+        nodes[node + LEFT] = free;
+        nodes[node + RIGHT] = NIL;
+        free = node;
+    }
+}
@@ -0,0 +1,391 @@
+package antifraud;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Replays historical transactions through a set of rules and reports how the verdicts would change, without
+ * touching the live state. Enabled by the {@code replay} profile; the application exits when the replay is done.
+ * <p>
+ * Transactions are read from the database in date order, or from {@code antifraud.replay.file}, a JSON array as
+ * returned by GET /api/antifraud/history sorted by date. They are partitioned by card number over
+ * {@code antifraud.replay.threads} workers, each with its own in-memory card limits and correlation events, so
+ * the transactions of one card are scored in order. Stored feedback is applied to the card limit right after
+ * its transaction is scored. Rules counting transactions across cards, IP_FREQUENCY and REGION_FREQUENCY, make the
+ * replay run on one worker. The rules are {@code antifraud.replay.rules} (declared like {@code antifraud.rules})
+ * or else the stored rules. Transactions whose verdict changes are written to {@code antifraud.replay.output}.
+ */
+@Component
+@ConditionalOnProperty(name = "antifraud.replay.enabled", havingValue = "true")
+class ReplayRunner implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(ReplayRunner.class);
+    private static final int BATCH = 1024;
+    private static final int SWEEP_EVERY = 1 << 20;
+    private static final long PROGRESS_NANOS = 10_000_000_000L;
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private final TransactionRepository transactionRepository;
+    private final RuleRepository ruleRepository;
+    private final TransactionChecker transactionChecker;
+    private final BlocklistCache blocklistCache;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final Environment environment;
+    private final ApplicationContext context;
+    private final String file;
+    private final Path output;
+    private final int threads;
+    private final int buckets;
+
+    ReplayRunner(TransactionRepository transactionRepository, RuleRepository ruleRepository, TransactionChecker transactionChecker,
+                 BlocklistCache blocklistCache, EntityManager entityManager, PlatformTransactionManager transactionManager,
+                 ObjectMapper objectMapper, Environment environment, ApplicationContext context,
+                 @Value("${antifraud.replay.file:}") String file,
+                 @Value("${antifraud.replay.output:replay-diff.csv}") Path output,
+                 @Value("${antifraud.replay.threads:0}") int threads,
+                 @Value("${antifraud.velocity.buckets:30}") int buckets) {
+        this.transactionRepository = transactionRepository;
+        this.ruleRepository = ruleRepository;
+        this.transactionChecker = transactionChecker;
+        this.blocklistCache = blocklistCache;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.objectMapper = objectMapper;
+        this.environment = environment;
+        this.context = context;
+        this.file = file;
+        this.output = output;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.buckets = buckets;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        var rules = Binder.get(environment).bind("antifraud.replay.rules", Bindable.listOf(Rule.Definition.class))
+                .orElseGet(() -> ruleRepository.findByOrderById().stream().map(Rule::definition).toList());
+        for (var rule : rules) {
+            if (!rule.isValid()) throw new IllegalStateException("Invalid rule " + rule);
+        }
+        var policy = rules.stream().filter(r -> r.type() == RuleType.CARD_LIMIT).findFirst()
+                .map(r -> new CardLimit.Policy(r.manualAbove(), r.prohibitedAbove(), r.weight()))
+                .orElse(CardLimit.Policy.DEFAULT);
+        var retention = rules.stream().filter(r -> r.type() == RuleType.REGION_CORRELATION || r.type() == RuleType.IP_CORRELATION)
+                .map(Rule.Definition::window).max(Comparator.naturalOrder()).orElse(Duration.ZERO);
+        var tracked = rules.stream().map(RollingCounters.Tracked::of).filter(Objects::nonNull).distinct().toList();
+        int threads = tracked.stream().anyMatch(t -> t.dimension() != RollingCounters.Dimension.CARD) ? 1 : this.threads;
+        log.info("Replaying with rules {}", rules.stream().map(Rule.Definition::name).toList());
+
+        var workers = new Worker[threads];
+        long start = System.nanoTime();
+        long rows;
+        try (var writer = Files.newBufferedWriter(output)) {
+            writer.write("id,number,date,result,feedback,replayed,info\n");
+            for (int i = 0; i < threads; i++) {
+                var state = new ReplayState(blocklistCache, policy, retention.toNanos(), tracked, buckets);
+                workers[i] = new Worker(transactionChecker.compile(rules, state), state, writer);
+                workers[i].thread = new Thread(workers[i], "replay-" + i);
+                workers[i].thread.start();
+            }
+            var reader = new Reader(workers, start);
+            try {
+                rows = file.isEmpty() ? transactionTemplate.execute(status -> reader.readDatabase()) : reader.readFile(Path.of(file));
+            } finally {
+                for (var worker : workers) worker.finish();
+            }
+        }
+        for (var worker : workers) {
+            if (worker.failure != null) throw new IllegalStateException("Replay failed", worker.failure);
+        }
+        report(workers, rows, System.nanoTime() - start);
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+
+    private void report(Worker[] workers, long rows, long nanos) {
+        long[][] matrix = new long[RESULTS.length][RESULTS.length];
+        long changed = 0, withFeedback = 0, agreeing = 0;
+        for (var worker : workers) {
+            for (int i = 0; i < RESULTS.length; i++) {
+                for (int j = 0; j < RESULTS.length; j++) matrix[i][j] += worker.matrix[i][j];
+            }
+            changed += worker.changed;
+            withFeedback += worker.withFeedback;
+            agreeing += worker.agreeingWithFeedback;
+        }
+        var report = new StringBuilder();
+        report.append("Replayed %d transactions in %.1f s (%.0f/s) on %d threads\n".formatted(
+                rows, nanos / 1e9, rows / (nanos / 1e9), workers.length));
+        report.append("%-20s".formatted("stored \\ replayed"));
+        for (var result : RESULTS) report.append("%20s".formatted(result));
+        report.append('\n');
+        for (var stored : RESULTS) {
+            report.append("%-20s".formatted(stored));
+            for (var replayed : RESULTS) report.append("%20d".formatted(matrix[stored.ordinal()][replayed.ordinal()]));
+            report.append('\n');
+        }
+        report.append("Changed verdicts: %d (%.2f%%), written to %s\n".formatted(
+                changed, rows == 0 ? 0 : 100.0 * changed / rows, output.toAbsolutePath()));
+        report.append("Transactions with feedback: %d, replayed verdict matches the feedback: %d".formatted(withFeedback, agreeing));
+        log.info("{}", report);
+    }
+
+    private class Reader {
+        private final Worker[] workers;
+        private final long start;
+        private long rows;
+        private LocalDateTime last = LocalDateTime.MIN;
+        private long nextProgress;
+
+        Reader(Worker[] workers, long start) {
+            this.workers = workers;
+            this.start = start;
+            this.nextProgress = start + PROGRESS_NANOS;
+        }
+
+        long readDatabase() {
+            try (var transactions = transactionRepository.streamByOrderByDateAscIdAsc()) {
+                for (var iterator = transactions.iterator(); iterator.hasNext(); ) {
+                    var transaction = iterator.next();
+                    entityManager.detach(transaction);
+                    dispatch(transaction);
+                }
+                return flush();
+            }
+        }
+
+        long readFile(Path path) throws IOException {
+            try (var rows = objectMapper.readerFor(TransactionController.TransactionResponse.class)
+                    .<TransactionController.TransactionResponse>readValues(path.toFile())) {
+                while (rows.hasNextValue()) {
+                    var row = rows.nextValue();
+                    var transaction = new Transaction(row.transactionId(), row.amount(), row.ip(), row.number(),
+                            row.region(), row.date(), row.result());
+                    if (row.feedback() != null && !row.feedback().isEmpty()) transaction.feedback = TransactionResult.valueOf(row.feedback());
+                    dispatch(transaction);
+                }
+                return flush();
+            }
+        }
+
+        private void dispatch(Transaction transaction) {
+            if (transaction.date.isBefore(last)) {
+                throw new IllegalStateException("Transactions are not sorted by date at transaction " + transaction.id);
+            }
+            last = transaction.date;
+            int h = transaction.number.hashCode();
+            var worker = workers[Math.floorMod(h ^ (h >>> 16), workers.length)];
+            worker.buffer.add(transaction);
+            if (worker.buffer.size() == BATCH) worker.hand(new ArrayList<>(BATCH));
+            if (++rows % BATCH == 0 && System.nanoTime() > nextProgress) {
+                nextProgress += PROGRESS_NANOS;
+                log.info("Replayed {} transactions, {}/s", rows, (long) (rows / ((System.nanoTime() - start) / 1e9)));
+            }
+        }
+
+        private long flush() {
+            for (var worker : workers) {
+                if (!worker.buffer.isEmpty()) worker.hand(new ArrayList<>(BATCH));
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Scores the transactions of its share of the cards, in the order it receives them.
+     */
+    private static class Worker implements Runnable {
+        private static final int DIFF_CHUNK = 64 * 1024;
+
+        final BlockingQueue<List<Transaction>> queue = new ArrayBlockingQueue<>(16);
+        final long[][] matrix = new long[RESULTS.length][RESULTS.length];
+        private final List<TransactionChecker.Check> checks;
+        private final ReplayState state;
+        private final Writer writer;
+        private final StringBuilder diffs = new StringBuilder();
+        List<Transaction> buffer = new ArrayList<>(BATCH);
+        Thread thread;
+        long changed;
+        long withFeedback;
+        long agreeingWithFeedback;
+        volatile Throwable failure;
+
+        Worker(List<TransactionChecker.Check> checks, ReplayState state, Writer writer) {
+            this.checks = checks;
+            this.state = state;
+            this.writer = writer;
+        }
+
+        void hand(List<Transaction> next) {
+            try {
+                queue.put(buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            buffer = next;
+        }
+
+        void finish() throws InterruptedException {
+            queue.put(List.of());
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (var batch = queue.take(); !batch.isEmpty(); batch = queue.take()) {
+                    if (failure != null) continue;
+                    try {
+                        for (var transaction : batch) score(transaction);
+                    } catch (RuntimeException | IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure == null) write(0);
+            } catch (InterruptedException | IOException e) {
+                failure = e;
+            }
+        }
+
+        private void score(Transaction t) throws IOException {
+            var request = new TransactionController.TransactionRequest(t.amount, t.ip, t.number, t.region, t.date);
+            List<String> manualInfos = new ArrayList<>(2);
+            List<String> prohibitedInfos = new ArrayList<>(2);
+            for (var check : checks) {
+                CheckPipeline.collect(check.description(), check.method().apply(request), manualInfos, prohibitedInfos);
+            }
+            var verdict = CheckPipeline.combine(manualInfos, prohibitedInfos);
+            state.record(t);
+
+            matrix[t.result.ordinal()][verdict.result().ordinal()]++;
+            if (t.feedback != null) {
+                withFeedback++;
+                if (verdict.result() == t.feedback) agreeingWithFeedback++;
+            }
+            if (verdict.result() != t.result) {
+                changed++;
+                diffs.append(t.id).append(',').append(t.number).append(',').append(t.date).append(',')
+                        .append(t.result).append(',').append(t.feedback == null ? "" : t.feedback).append(',')
+                        .append(verdict.result()).append(",\"").append(verdict.info()).append("\"\n");
+                write(DIFF_CHUNK);
+            }
+        }
+
+        private void write(int threshold) throws IOException {
+            if (diffs.length() <= threshold) return;
+            synchronized (writer) {
+                writer.append(diffs);
+            }
+            diffs.setLength(0);
+        }
+    }
+
+    /**
+     * The in-memory state of one worker. Blocklists are the current ones; limits, correlation events and rolling
+     * counters only reflect the transactions replayed so far.
+     */
+    private static class ReplayState implements ScoringState {
+        private final BlocklistCache blocklistCache;
+        private final CardLimit.Policy policy;
+        private final long retentionNanos;
+        private final Map<String, CardLimit> limits = new HashMap<>();
+        private final Map<String, CorrelationWindow.CardEvents> events = new HashMap<>();
+        private final Map<RollingCounters.Tracked, RollingCounters.Window> counters = new HashMap<>();
+        private long recorded;
+
+        ReplayState(BlocklistCache blocklistCache, CardLimit.Policy policy, long retentionNanos, List<RollingCounters.Tracked> tracked, int buckets) {
+            this.blocklistCache = blocklistCache;
+            this.policy = policy;
+            this.retentionNanos = retentionNanos;
+            for (var t : tracked) counters.put(t, new RollingCounters.Window(t.window(), buckets, Long.MIN_VALUE));
+        }
+
+        @Override
+        public boolean isSuspiciousIp(String ip) {
+            return blocklistCache.isSuspiciousIp(ip);
+        }
+
+        @Override
+        public boolean isStolenCard(String number) {
+            return blocklistCache.isStolenCard(number);
+        }
+
+        @Override
+        public Optional<CardLimit> cardLimit(String number) {
+            return Optional.ofNullable(limits.get(number));
+        }
+
+        @Override
+        public int otherRegions(String number, Region region, LocalDateTime from, LocalDateTime to) {
+            var card = events.get(number);
+            return card == null ? 0 : card.otherRegions(region, CorrelationWindow.nanos(from), CorrelationWindow.nanos(to)).orElseThrow();
+        }
+
+        @Override
+        public int otherIps(String number, String ip, LocalDateTime from, LocalDateTime to) {
+            var card = events.get(number);
+            return card == null ? 0 : card.otherIps(IPv4.pack(ip), CorrelationWindow.nanos(from), CorrelationWindow.nanos(to)).orElseThrow();
+        }
+
+        @Override
+        public RollingCounters.Totals cardTotals(String number, Duration window, LocalDateTime date) {
+            return totals(RollingCounters.Dimension.CARD, CardNumber.pack(number), window, date);
+        }
+
+        @Override
+        public int ipTransactions(String ip, Duration window, LocalDateTime date) {
+            return totals(RollingCounters.Dimension.IP, IPv4.pack(ip) & 0xffffffffL, window, date).count();
+        }
+
+        @Override
+        public int regionTransactions(Region region, Duration window, LocalDateTime date) {
+            return totals(RollingCounters.Dimension.REGION, region.ordinal(), window, date).count();
+        }
+
+        private RollingCounters.Totals totals(RollingCounters.Dimension dimension, long key, Duration window, LocalDateTime date) {
+            return counters.get(new RollingCounters.Tracked(dimension, window)).totals(key, CorrelationWindow.nanos(date)).orElseThrow();
+        }
+
+        void record(Transaction t) {
+            long date = CorrelationWindow.nanos(t.date);
+            long cutoff = date - retentionNanos;
+            var card = events.computeIfAbsent(t.number, n -> new CorrelationWindow.CardEvents());
+            card.evictBefore(cutoff);
+            card.add(date, t.region, IPv4.pack(t.ip), Integer.MAX_VALUE);
+            if (t.feedback != null) limits.computeIfAbsent(t.number, n -> new CardLimit(n, policy)).applyFeedback(t, policy);
+            for (var entry : counters.entrySet()) {
+                long key = RollingCounters.key(entry.getKey().dimension(), t);
+                if (key != CardNumber.INVALID) entry.getValue().add(key, date, 1, t.amount);
+            }
+            if (++recorded % SWEEP_EVERY == 0) {
+                events.values().removeIf(c -> c.evictBefore(cutoff));
+                for (var window : counters.values()) window.evict(date);
+            }
+        }
+    }
+}
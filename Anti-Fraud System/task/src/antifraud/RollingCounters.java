@@ -0,0 +1,291 @@
+package antifraud;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolling transaction counts and amount sums per card number, IP and region, so the velocity rules are answered
+ * without a query. Every dimension and window used by a rule has a {@link Window}: a ring of
+ * {@code antifraud.velocity.buckets} counters per key, each bucket covering window / buckets of transaction time.
+ * Recording and reading the newest window are O(1). A window ends with the bucket of the transaction being
+ * scored, so it reaches back between window - window / buckets and window.
+ * <p>
+ * Like the {@link CorrelationWindow}, all transactions dated at or after a window's horizon are counted; a query
+ * reaching back before it, or dated more than a bucket before the newest transaction of its key, is not covered
+ * and the caller falls back to the repository. A window added by a rule change starts at the newest transaction
+ * and is covered once it has passed. Keys without transactions in the window of the newest one are evicted every
+ * {@code antifraud.velocity.eviction-interval}. Loaded at startup by the {@link StateSnapshot}.
+ * <p>
+ * In a partitioned {@link Cluster} a node only sees the transactions of the cards it owns, so only card windows
+ * are kept; IP and region rules are answered from the shared database.
+ */
+@Component
+class RollingCounters {
+    private final TransactionRepository transactionRepository;
+    private final TransactionIdAllocator transactionIds;
+    private final int buckets;
+    private final boolean partitioned;
+    private volatile Map<Tracked, Window> windows = Map.of();
+    private volatile long latest = Long.MIN_VALUE;
+    private volatile boolean loaded;
+
+    RollingCounters(TransactionRepository transactionRepository, TransactionIdAllocator transactionIds, Cluster cluster,
+                    @Value("${antifraud.velocity.buckets:30}") int buckets) {
+        this.transactionRepository = transactionRepository;
+        this.transactionIds = transactionIds;
+        this.buckets = buckets;
+        this.partitioned = cluster.isPartitioned();
+    }
+
+    enum Dimension {CARD, IP, REGION}
+
+    record Tracked(Dimension dimension, Duration window) {
+        /**
+         * @return what the rule counts, or {@code null} if it is not a velocity rule
+         */
+        static Tracked of(Rule.Definition rule) {
+            var dimension = switch (rule.type()) {
+                case CARD_FREQUENCY, CARD_VELOCITY -> Dimension.CARD;
+                case IP_FREQUENCY -> Dimension.IP;
+                case REGION_FREQUENCY -> Dimension.REGION;
+                default -> null;
+            };
+            return dimension == null ? null : new Tracked(dimension, rule.window());
+        }
+    }
+
+    record Totals(int count, long amount) {
+        static final Totals NONE = new Totals(0, 0);
+    }
+
+    /**
+     * Keeps the windows of the velocity rules among {@code rules} and drops the others.
+     */
+    synchronized void track(List<Rule.Definition> rules) {
+        Map<Tracked, Window> next = new HashMap<>();
+        List<Window> added = new ArrayList<>();
+        for (var rule : rules) {
+            var tracked = Tracked.of(rule);
+            if (tracked == null || next.containsKey(tracked)) continue;
+            if (partitioned && tracked.dimension() != Dimension.CARD) continue;
+            var window = windows.get(tracked);
+            if (window == null) {
+                window = new Window(tracked.window(), buckets, Long.MAX_VALUE);
+                added.add(window);
+            }
+            next.put(tracked, window);
+        }
+        windows = Map.copyOf(next);
+        // read after publishing: a transaction recorded into the previous windows is dated at most latest
+        if (loaded) {
+            long start = latest == Long.MIN_VALUE ? Long.MIN_VALUE : latest + 1;
+            for (var window : added) window.horizon = start;
+        }
+    }
+
+    /**
+     * Replaces the counters with the transactions within the longest window of the newest one. Transactions
+     * stored meanwhile are counted as they are recorded, not again from the database.
+     */
+    synchronized void warmUp() {
+        loaded = false;
+        for (var window : windows.values()) window.clear();
+        var longest = windows.keySet().stream().map(Tracked::window).max(Duration::compareTo);
+        var newest = transactionRepository.findTopByOrderByDateDesc();
+        long horizon = Long.MIN_VALUE;
+        if (newest.isPresent()) {
+            long date = CorrelationWindow.nanos(newest.get().date);
+            if (date > latest) latest = date;
+            if (longest.isPresent()) {
+                int lastId = transactionIds.last();
+                var from = newest.get().date.minus(longest.get());
+                try (var transactions = transactionRepository.streamByDateGreaterThanEqualOrderById(from)) {
+                    transactions.forEach(t -> {
+                        if (t.id <= lastId) record(t);
+                    });
+                }
+                horizon = CorrelationWindow.nanos(from);
+            }
+        }
+        for (var window : windows.values()) window.horizon = horizon;
+        loaded = true;
+    }
+
+    void record(Transaction t) {
+        long date = CorrelationWindow.nanos(t.date);
+        if (date > latest) latest = date;
+        for (var entry : windows.entrySet()) add(entry, t, date, 1, t.amount);
+    }
+
+    void forget(Transaction t) {
+        long date = CorrelationWindow.nanos(t.date);
+        for (var entry : windows.entrySet()) add(entry, t, date, -1, -t.amount);
+    }
+
+    private static void add(Map.Entry<Tracked, Window> entry, Transaction t, long date, int count, long amount) {
+        long key = key(entry.getKey().dimension(), t);
+        if (key != CardNumber.INVALID) entry.getValue().add(key, date, count, amount);
+    }
+
+    /**
+     * @return the count and amount sum of the key's transactions in the window ending with {@code date}, empty if
+     * the window is not tracked or not covered
+     */
+    Optional<Totals> totals(Dimension dimension, long key, Duration window, LocalDateTime date) {
+        var counters = windows.get(new Tracked(dimension, window));
+        return counters == null ? Optional.empty() : counters.totals(key, CorrelationWindow.nanos(date));
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.velocity.eviction-interval:PT1M}")
+    void evict() {
+        if (latest == Long.MIN_VALUE) return;
+        for (var window : windows.values()) window.evict(latest);
+    }
+
+    /**
+     * @return the key of the transaction's card, IP or region, {@link CardNumber#INVALID} for a card number that
+     * does not pack
+     */
+    static long key(Dimension dimension, Transaction t) {
+        return switch (dimension) {
+            case CARD -> CardNumber.pack(t.number);
+            case IP -> IPv4.pack(t.ip) & 0xffffffffL;
+            case REGION -> t.region.ordinal();
+        };
+    }
+
+    /**
+     * The counters of one dimension and window, a {@link Ring} per key. Also used by {@link ReplayRunner} for its
+     * per-worker state.
+     */
+    static class Window {
+        private final long nanos;
+        private final long bucketNanos;
+        private final int buckets;
+        private final Map<Long, Ring> rings = new ConcurrentHashMap<>();
+        private volatile long horizon;
+
+        Window(Duration window, int buckets, long horizon) {
+            this.buckets = buckets;
+            this.bucketNanos = Math.max(1, window.toNanos() / buckets);
+            this.nanos = bucketNanos * buckets;
+            this.horizon = horizon;
+        }
+
+        /**
+         * Adds to the key's counters; a negative count takes back a transaction recorded before.
+         */
+        void add(long key, long date, int count, long amount) {
+            long bucket = Math.floorDiv(date, bucketNanos);
+            if (count < 0) {
+                rings.computeIfPresent(key, (k, ring) -> {
+                    ring.add(bucket, count, amount);
+                    return ring;
+                });
+            } else {
+                rings.compute(key, (k, ring) -> {
+                    if (ring == null) ring = new Ring(buckets, bucket);
+                    ring.add(bucket, count, amount);
+                    return ring;
+                });
+            }
+        }
+
+        Optional<Totals> totals(long key, long date) {
+            if (date - nanos < horizon) return Optional.empty();
+            var ring = rings.get(key);
+            if (ring == null) return Optional.of(Totals.NONE);
+            return Optional.ofNullable(ring.totals(Math.floorDiv(date, bucketNanos)));
+        }
+
+        /**
+         * Drops the keys without transactions in the window ending with {@code latest}, whose start becomes the
+         * horizon.
+         */
+        void evict(long latest) {
+            long cutoff = latest - nanos;
+            if (horizon == Long.MAX_VALUE || cutoff <= horizon) return;
+            horizon = cutoff;
+            long bucket = Math.floorDiv(cutoff, bucketNanos);
+            for (var key : rings.keySet()) {
+                rings.computeIfPresent(key, (k, ring) -> ring.newestBefore(bucket) ? null : ring);
+            }
+        }
+
+        private void clear() {
+            horizon = Long.MAX_VALUE;
+            rings.clear();
+        }
+    }
+
+    /**
+     * The counters of one key: {@code buckets} buckets for the window plus one for a transaction arriving just
+     * after a newer one, with running totals over all of them. Buckets are addressed by bucket number modulo the
+     * ring size; moving to a newer bucket clears the ones it passes.
+     */
+    private static class Ring {
+        private final int[] counts;
+        private final long[] amounts;
+        private long newest;
+        private int count;
+        private long amount;
+
+        Ring(int buckets, long newest) {
+            this.counts = new int[buckets + 1];
+            this.amounts = new long[buckets + 1];
+            this.newest = newest;
+        }
+
+        synchronized void add(long bucket, int count, long amount) {
+            if (bucket > newest) advance(bucket);
+            else if (bucket <= newest - counts.length) return;
+            int i = index(bucket);
+            counts[i] += count;
+            amounts[i] += amount;
+            this.count += count;
+            this.amount += amount;
+        }
+
+        /**
+         * @return the totals of the window ending with {@code bucket}, {@code null} if it ends before the ring
+         * holds all of it
+         */
+        synchronized Totals totals(long bucket) {
+            if (bucket < newest - 1) return null;
+            if (bucket > newest) advance(bucket);
+            // the ring holds one bucket more than the window: the oldest one, or the newest for a late transaction
+            int excluded = index(bucket == newest ? newest + 1 : newest);
+            return new Totals(count - counts[excluded], amount - amounts[excluded]);
+        }
+
+        synchronized boolean newestBefore(long bucket) {
+            return newest < bucket;
+        }
+
+        private void advance(long bucket) {
+            long steps = Math.min(bucket - newest, counts.length);
+            for (long b = newest + 1; b <= newest + steps; b++) {
+                int i = index(b);
+                count -= counts[i];
+                amount -= amounts[i];
+                counts[i] = 0;
+                amounts[i] = 0;
+            }
+            newest = bucket;
+        }
+
+        private int index(long bucket) {
+            return (int) Math.floorMod(bucket, (long) counts.length);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package antifraud;
+
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+
+import java.time.Duration;
+
+/**
+ * A scoring rule, compiled into a check by {@link TransactionChecker}. A rule measures a value of the
+ * transaction and answers MANUAL_PROCESSING when it is above {@code manualAbove} and PROHIBITED when it is
+ * above {@code prohibitedAbove}:
+ * <ul>
+ *     <li>IP_BLOCKLIST, CARD_BLOCKLIST: 1 when listed, the thresholds are ignored</li>
+ *     <li>AMOUNT: the amount, against fixed thresholds</li>
+ *     <li>CARD_LIMIT: the amount, against the card's {@link CardLimit}; the thresholds are the limits of a card
+ *     without feedback and {@code weight} is the share of the transaction amount in a feedback adjustment</li>
+ *     <li>REGION_CORRELATION, IP_CORRELATION: the number of other regions or IPs of the card in the
+ *     {@code window} before the transaction</li>
+ *     <li>CARD_FREQUENCY, IP_FREQUENCY, REGION_FREQUENCY: the number of transactions of the card, from the IP or in
+ *     the region in the {@code window} up to the transaction, itself included</li>
+ *     <li>CARD_VELOCITY: the total amount of the card's transactions in the {@code window} up to the transaction,
+ *     itself included</li>
+ * </ul>
+ */
+@Entity
+class Rule {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    int id;
+    @Column(unique = true)
+    String name;
+    @Enumerated(EnumType.STRING)
+    RuleType type;
+    long manualAbove;
+    long prohibitedAbove;
+    Duration window;
+    Double weight;
+
+    public Rule() {
+    }
+
+    Rule(Definition definition) {
+        update(definition);
+    }
+
+    void update(Definition definition) {
+        name = definition.name();
+        type = definition.type();
+        manualAbove = definition.manualAbove();
+        prohibitedAbove = definition.prohibitedAbove();
+        window = definition.window();
+        weight = definition.weight();
+    }
+
+    Definition definition() {
+        return new Definition(name, type, manualAbove, prohibitedAbove, window, weight);
+    }
+
+    record Definition(@NotBlank String name, @NotNull RuleType type, @Min(0) long manualAbove, @Min(0) long prohibitedAbove,
+                      Duration window, Double weight) {
+        boolean isValid() {
+            if (name == null || name.isBlank() || type == null) return false;
+            if (manualAbove < 0 || prohibitedAbove < manualAbove) return false;
+            return switch (type) {
+                case REGION_CORRELATION, IP_CORRELATION, CARD_FREQUENCY, CARD_VELOCITY, IP_FREQUENCY, REGION_FREQUENCY -> window != null && !window.isNegative() && !window.isZero();
+                case CARD_LIMIT -> weight != null && weight > 0 && weight <= 1;
+                default -> true;
+            };
+        }
+    }
+}
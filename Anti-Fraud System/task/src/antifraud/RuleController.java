@@ -0,0 +1,70 @@
+package antifraud;
+
+import jakarta.validation.Valid;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.stream.Stream;
+
+@RestController
+@RequestMapping("/api/antifraud/rules")
+public class RuleController {
+    private final RuleRepository ruleRepository;
+    private final RuleService ruleService;
+    private final Cluster cluster;
+
+    RuleController(RuleRepository ruleRepository, RuleService ruleService, Cluster cluster) {
+        this.ruleRepository = ruleRepository;
+        this.ruleService = ruleService;
+        this.cluster = cluster;
+    }
+
+    @GetMapping
+    Stream<Rule.Definition> listRules() {
+        return ruleRepository.findByOrderById().stream().map(Rule::definition);
+    }
+
+    @PostMapping
+    Rule.Definition addRule(@Valid @RequestBody Rule.Definition definition) throws BadRequestException, ConflictException {
+        if (!definition.isValid()) throw new BadRequestException();
+        if (ruleRepository.existsByName(definition.name())) throw new ConflictException();
+        checkSingleCardLimit(definition);
+        var rule = ruleRepository.save(new Rule(definition));
+        reload();
+        return rule.definition();
+    }
+
+    @PutMapping
+    Rule.Definition updateRule(@Valid @RequestBody Rule.Definition definition) throws BadRequestException, NotFoundException, ConflictException {
+        if (!definition.isValid()) throw new BadRequestException();
+        var rule = ruleRepository.findByName(definition.name()).orElseThrow(NotFoundException::new);
+        checkSingleCardLimit(definition);
+        rule.update(definition);
+        ruleRepository.save(rule);
+        reload();
+        return rule.definition();
+    }
+
+    @DeleteMapping("/{name}")
+    RuleDeletedResponse deleteRule(@PathVariable String name) throws NotFoundException {
+        ruleRepository.delete(ruleRepository.findByName(name).orElseThrow(NotFoundException::new));
+        reload();
+        return new RuleDeletedResponse("Rule %s successfully removed!".formatted(name));
+    }
+
+    /**
+     * Reloads the rules here and on the other nodes of a partitioned {@link Cluster}.
+     */
+    private void reload() {
+        ruleService.reload();
+        cluster.broadcast("/rules", null);
+    }
+
+    private void checkSingleCardLimit(Rule.Definition definition) throws ConflictException {
+        if (definition.type() == RuleType.CARD_LIMIT && ruleRepository.existsByTypeAndNameNot(RuleType.CARD_LIMIT, definition.name())) {
+            throw new ConflictException();
+        }
+    }
+
+    record RuleDeletedResponse(String status) {
+    }
+}
@@ -0,0 +1,13 @@
+package antifraud;
+
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+import java.util.Optional;
+
+interface RuleRepository extends CrudRepository<Rule, Integer> {
+    Optional<Rule> findByName(String name);
+    boolean existsByName(String name);
+    boolean existsByTypeAndNameNot(RuleType type, String name);
+    List<Rule> findByOrderById();
+}
@@ -0,0 +1,67 @@
+package antifraud;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the stored rules and the plan compiled by {@link TransactionChecker} in sync. Rules declared under
+ * {@code antifraud.rules} are written at startup, replacing stored rules of the same name; when nothing is
+ * configured or stored, the built-in rules are used.
+ */
+@Service
+class RuleService {
+    static final List<Rule.Definition> DEFAULTS = List.of(
+            new Rule.Definition("ip", RuleType.IP_BLOCKLIST, 0, 0, null, null),
+            new Rule.Definition("card-number", RuleType.CARD_BLOCKLIST, 0, 0, null, null),
+            new Rule.Definition("amount", RuleType.CARD_LIMIT, 200, 1500, null, .2),
+            new Rule.Definition("region-correlation", RuleType.REGION_CORRELATION, 1, 2, Duration.ofHours(1), null),
+            new Rule.Definition("ip-correlation", RuleType.IP_CORRELATION, 1, 2, Duration.ofHours(1), null)
+    );
+
+    private final RuleRepository ruleRepository;
+    private final TransactionChecker transactionChecker;
+    private final Environment environment;
+    private final ReentrantLock reloading = new ReentrantLock();
+
+    RuleService(RuleRepository ruleRepository, TransactionChecker transactionChecker, Environment environment) {
+        this.ruleRepository = ruleRepository;
+        this.transactionChecker = transactionChecker;
+        this.environment = environment;
+    }
+
+    @PostConstruct
+    void load() {
+        var configured = Binder.get(environment).bind("antifraud.rules", Bindable.listOf(Rule.Definition.class)).orElse(List.of());
+        if (configured.isEmpty() && ruleRepository.count() == 0) configured = DEFAULTS;
+        for (var definition : configured) {
+            if (!definition.isValid()) throw new IllegalStateException("Invalid rule " + definition);
+            if (definition.type() == RuleType.CARD_LIMIT && ruleRepository.existsByTypeAndNameNot(RuleType.CARD_LIMIT, definition.name())) {
+                throw new IllegalStateException("Only one CARD_LIMIT rule is allowed: " + definition.name());
+            }
+            var rule = ruleRepository.findByName(definition.name()).orElseGet(Rule::new);
+            rule.update(definition);
+            ruleRepository.save(rule);
+        }
+        reload();
+    }
+
+    /**
+     * Compiles the stored rules and swaps them in. Reloads are serialised so that concurrent changes cannot
+     * install an older set of rules last.
+     */
+    void reload() {
+        reloading.lock();
+        try {
+            transactionChecker.install(ruleRepository.findByOrderById().stream().map(Rule::definition).toList());
+        } finally {
+            reloading.unlock();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package antifraud;
+
+public enum RuleType {
+    IP_BLOCKLIST,
+    CARD_BLOCKLIST,
+    AMOUNT,
+    CARD_LIMIT,
+    REGION_CORRELATION,
+    IP_CORRELATION,
+    CARD_FREQUENCY,
+    CARD_VELOCITY,
+    IP_FREQUENCY,
+    REGION_FREQUENCY
+}
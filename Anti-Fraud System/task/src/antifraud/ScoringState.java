@@ -0,0 +1,31 @@
+package antifraud;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * What the compiled rules read while scoring: the blocklists, the per-card limits, the card's recent
+ * transactions and the transaction counts of cards, IPs and regions. The live implementation in {@link TransactionChecker} reads the caches and the database,
+ * {@link ReplayRunner} gives every worker its own in-memory state.
+ */
+interface ScoringState {
+    boolean isSuspiciousIp(String ip);
+
+    boolean isStolenCard(String number);
+
+    Optional<CardLimit> cardLimit(String number);
+
+    int otherRegions(String number, Region region, LocalDateTime from, LocalDateTime to);
+
+    int otherIps(String number, String ip, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * The card's transactions in the {@code window} up to {@code date}, not counting the one being scored.
+     */
+    RollingCounters.Totals cardTotals(String number, Duration window, LocalDateTime date);
+
+    int ipTransactions(String ip, Duration window, LocalDateTime date);
+
+    int regionTransactions(Region region, Duration window, LocalDateTime date);
+}
@@ -0,0 +1,80 @@
+package antifraud;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.SplittableRandom;
+
+/**
+ * Sends {@code antifraud.warm-up.transactions} synthetic transactions through the steps of
+ * {@link TransactionController#handle} except storing them: JSON binding, validation and scoring with the
+ * current rules. This runs after the other startup runners, before the readiness probe
+ * ({@code /actuator/health/readiness}) reports ACCEPTING_TRAFFIC, so the first real requests find the JIT,
+ * the check executor and the connection pool warm. The synthetic cards are not stored anywhere, and are scored
+ * with the uncounted checks so they stay out of the rule, verdict and blocklist metrics.
+ */
+@Component
+@Order(3)
+class ScoringWarmUp implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(ScoringWarmUp.class);
+    private static final Region[] REGIONS = Region.values();
+
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final CheckPipeline checkPipeline;
+    private final int transactions;
+
+    ScoringWarmUp(ObjectMapper objectMapper, Validator validator, CheckPipeline checkPipeline,
+                  @Value("${antifraud.warm-up.transactions:0}") int transactions) {
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.checkPipeline = checkPipeline;
+        this.transactions = transactions;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (transactions <= 0) return;
+        long start = System.nanoTime();
+        var random = new SplittableRandom(transactions);
+        var now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        int n = 0;
+        try {
+            for (; n < transactions; n++) {
+                var body = objectMapper.writeValueAsString(new TransactionController.TransactionRequest(
+                        random.nextLong(1, 3000), "10.%d.%d.%d".formatted(random.nextInt(256), random.nextInt(256), random.nextInt(256)),
+                        cardNumber(random), REGIONS[random.nextInt(REGIONS.length)], now.minusSeconds(random.nextInt(3600))));
+                var request = objectMapper.readValue(body, TransactionController.TransactionRequest.class);
+                if (!validator.validate(request).isEmpty() || !IP.verify(request.ip())) throw new IllegalStateException("Invalid warm-up transaction " + body);
+                var verdict = checkPipeline.scoreUncounted(request);
+                objectMapper.writeValueAsString(new TransactionController.TransactionResultResponse(verdict.result(), verdict.info()));
+            }
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.warn("Warm-up stopped after {} transactions", n, e);
+            return;
+        }
+        log.info("Warmed up with {} transactions in {} ms", n, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * A random 16 digit number with a valid check digit, from a test range.
+     */
+    private static String cardNumber(SplittableRandom random) {
+        var digits = new StringBuilder("400000");
+        for (int i = 0; i < 9; i++) digits.append((char) ('0' + random.nextInt(10)));
+        for (char check = '0'; ; check++) {
+            var number = digits.toString() + check;
+            if (Card.IsValidLuhn(number)) return number;
+        }
+    }
+}
@@ -25,6 +25,24 @@ public class SecurityConfig {
     @Autowired
     RestAuthenticationEntryPoint restAuthenticationEntryPoint;
 
+    /**
+     * The internal endpoints of a partitioned {@link Cluster} are only open to nodes presenting the cluster secret.
+     */
+    @Bean
+    @Order(0)
+    public SecurityFilterChain clusterFilter(HttpSecurity http, Cluster cluster) throws Exception {
+        return http
+                .securityMatcher(Cluster.INTERNAL_PATH + "/**")
+                .sessionManagement(s -> s.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .csrf(c -> c.disable())
+                .authorizeHttpRequests(r -> r
+                        .anyRequest().access(
+                                (auth, req) -> new AuthorizationDecision(cluster.isAuthorized(req.getRequest().getHeader(Cluster.SECRET_HEADER)))
+                        )
+                )
+                .build();
+    }
+
     @Bean
     @Order(2)
     public SecurityFilterChain swaggerFilter(HttpSecurity http) throws Exception {
@@ -76,21 +94,26 @@ public class SecurityConfig {
                         .requestMatchers(HttpMethod.DELETE, "/api/auth/user/{username}").hasRole(Role.ADMINISTRATOR.name())
                         .requestMatchers(HttpMethod.GET, "/api/auth/list").hasAnyRole(Role.ADMINISTRATOR.name(), Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.POST, "/api/antifraud/transaction").hasRole(Role.MERCHANT.name())
+                        .requestMatchers(HttpMethod.POST, "/api/antifraud/transaction/batch").hasRole(Role.MERCHANT.name())
 
                         .requestMatchers(HttpMethod.PUT, "/api/auth/role").hasRole(Role.ADMINISTRATOR.name())
                         .requestMatchers(HttpMethod.PUT, "/api/auth/access").hasRole(Role.ADMINISTRATOR.name())
 
                         .requestMatchers(HttpMethod.GET, "/api/antifraud/suspicious-ip").hasRole(Role.SUPPORT.name())
-                        .requestMatchers(HttpMethod.POST, "/api/antifraud/suspicious-ip").hasRole(Role.SUPPORT.name())
-                        .requestMatchers(HttpMethod.DELETE, "/api/antifraud/suspicious-ip/{ip}").hasRole(Role.SUPPORT.name())
+                        .requestMatchers(HttpMethod.POST, "/api/antifraud/suspicious-ip", "/api/antifraud/suspicious-ip/bulk").hasRole(Role.SUPPORT.name())
+                        .requestMatchers(HttpMethod.DELETE, "/api/antifraud/suspicious-ip/{ip}", "/api/antifraud/suspicious-ip/{ip}/{length}").hasRole(Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.GET, "/api/antifraud/stolencard").hasRole(Role.SUPPORT.name())
-                        .requestMatchers(HttpMethod.POST, "/api/antifraud/stolencard").hasRole(Role.SUPPORT.name())
+                        .requestMatchers(HttpMethod.POST, "/api/antifraud/stolencard", "/api/antifraud/stolencard/bulk").hasRole(Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.DELETE, "/api/antifraud/stolencard/{number}").hasRole(Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.GET, "/api/antifraud/history").hasRole(Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.GET, "/api/antifraud/history/{number}").hasRole(Role.SUPPORT.name())
+                        .requestMatchers(HttpMethod.GET, "/api/antifraud/history/{number}/summary").hasRole(Role.SUPPORT.name())
                         .requestMatchers(HttpMethod.PUT, "/api/antifraud/transaction").hasRole(Role.SUPPORT.name())
+                        .requestMatchers("/api/antifraud/rules", "/api/antifraud/rules/{name}").hasRole(Role.ADMINISTRATOR.name())
 
                         .requestMatchers("/actuator/shutdown").permitAll()
+                        .requestMatchers(HttpMethod.GET, "/actuator/health/liveness", "/actuator/health/readiness").permitAll()
+                        .requestMatchers(HttpMethod.GET, "/actuator/metrics", "/actuator/metrics/{name}", "/actuator/prometheus").hasRole(Role.ADMINISTRATOR.name())
                         .requestMatchers("/error").permitAll()
                         .requestMatchers("/favicon.ico").permitAll()
 
@@ -0,0 +1,222 @@
+package antifraud;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of tagged sections, written and read through memory mappings. Sections are written one after the
+ * other, followed by a table of their tags, offsets, lengths and CRCs; a section is only handed out when its
+ * CRC matches, so a reader can use the intact sections of a damaged file. Files are written next to the target
+ * and moved into place when complete. A snapshot must stay below 2 GB, the size of one mapping.
+ */
+class SnapshotFile {
+    private static final int MAGIC = 0x534e5031; // "SNP1"
+    private static final long CHUNK = 16L << 20;
+
+    interface Section {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static Writer create(Path file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * @return the snapshot, or {@code null} if the file does not exist
+     * @throws IOException also when the file is not a snapshot
+     */
+    static Reader open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) throw new IOException("Not a snapshot: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        int size = buffer.capacity();
+        if (buffer.getInt(size - 4) != MAGIC) throw new IOException("Not a snapshot: " + file);
+        long table = buffer.getLong(size - 12);
+        if (table < 0 || table > size - 16) throw new IOException("Corrupt snapshot: " + file);
+        Map<Integer, ByteBuffer> sections = new HashMap<>();
+        int count = buffer.getInt((int) table);
+        for (int i = 0, entry = (int) table + 4; i < count; i++, entry += 24) {
+            if (entry + 24 > size - 12) throw new IOException("Corrupt snapshot: " + file);
+            int tag = buffer.getInt(entry);
+            long offset = buffer.getLong(entry + 4);
+            long length = buffer.getLong(entry + 12);
+            int crc = buffer.getInt(entry + 20);
+            if (offset < 0 || length < 0 || offset + length > table) throw new IOException("Corrupt snapshot: " + file);
+            var section = buffer.slice((int) offset, (int) length);
+            var checksum = new CRC32();
+            checksum.update(section.duplicate());
+            if ((int) checksum.getValue() == crc) sections.put(tag, section);
+        }
+        return new Reader(sections);
+    }
+
+    static class Reader {
+        private final Map<Integer, ByteBuffer> sections;
+
+        private Reader(Map<Integer, ByteBuffer> sections) {
+            this.sections = sections;
+        }
+
+        /**
+         * @return the section, empty if it was not written or is damaged
+         */
+        Optional<DataInputStream> section(int tag) {
+            var section = sections.get(tag);
+            return section == null ? Optional.empty() : Optional.of(new DataInputStream(new BufferInput(section.duplicate())));
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final MappedOutput output;
+        private final DataOutputStream data;
+        private final List<long[]> table = new ArrayList<>();
+        private boolean committed;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.output = new MappedOutput(channel);
+            this.data = new DataOutputStream(output);
+        }
+
+        Writer section(int tag, Section section) throws IOException {
+            long offset = output.position();
+            output.crc.reset();
+            section.write(data);
+            data.flush();
+            table.add(new long[]{tag, offset, output.position() - offset, output.crc.getValue()});
+            return this;
+        }
+
+        void commit() throws IOException {
+            long start = output.position();
+            data.writeInt(table.size());
+            for (var entry : table) {
+                data.writeInt((int) entry[0]);
+                data.writeLong(entry[1]);
+                data.writeLong(entry[2]);
+                data.writeInt((int) entry[3]);
+            }
+            data.writeLong(start);
+            data.writeInt(MAGIC);
+            data.flush();
+            long size = output.position();
+            if (size > Integer.MAX_VALUE) throw new IOException("Snapshot exceeds 2 GB");
+            output.force();
+            channel.truncate(size);
+            channel.close();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            channel.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Writes through a mapping of the next {@value #CHUNK} bytes, mapping the following chunk once it is full.
+     */
+    private static class MappedOutput extends OutputStream {
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer buffer;
+        private long base;
+
+        MappedOutput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK);
+        }
+
+        long position() {
+            return base + buffer.position();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) next();
+            buffer.put((byte) b);
+            crc.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            while (len > 0) {
+                if (!buffer.hasRemaining()) next();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        private void next() throws IOException {
+            buffer.force();
+            base += buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, CHUNK);
+        }
+    }
+
+    private static class BufferInput extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package antifraud;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes the in-memory fraud state to a {@link SnapshotFile} every {@code antifraud.snapshot.interval} and on
+ * shutdown, and loads it at startup instead of reading it from the database: the suspicious IPs and stolen cards
+ * of the {@link BlocklistCache}, and the {@link CorrelationWindow} unless the {@link CardViews} own it. Blocklist
+ * sections are only used while the tables still have their row count and highest id. The correlation window is
+ * caught up with the transactions stored after it, by id; ids handed out shortly before the snapshot may be
+ * stored after it, so the last {@value #CATCH_UP_OVERLAP} ids are read again, which the correlation checks
+ * tolerate as they count distinct regions and IPs. The {@link RollingCounters} are not snapshotted, as they must not
+ * count a transaction twice; they are loaded from the database after the correlation window.
+ */
+@Component
+@Order(0)
+class StateSnapshot implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(StateSnapshot.class);
+    private static final int IPS = 1;
+    private static final int CARDS = 2;
+    private static final int CORRELATION = 3;
+    private static final int CATCH_UP_OVERLAP = 1000;
+
+    private final BlocklistCache blocklistCache;
+    private final CorrelationWindow correlationWindow;
+    private final RollingCounters rollingCounters;
+    private final TransactionRepository transactionRepository;
+    private final TransactionIdAllocator transactionIds;
+    private final TransactionTemplate readOnlyTemplate;
+    private final Path file;
+    private final boolean correlationInEventLog;
+
+    StateSnapshot(BlocklistCache blocklistCache, CorrelationWindow correlationWindow, RollingCounters rollingCounters, TransactionRepository transactionRepository,
+                  TransactionIdAllocator transactionIds, PlatformTransactionManager transactionManager,
+                  @Value("${antifraud.snapshot.file:}") String file,
+                  @Value("${antifraud.event-log.enabled:false}") boolean correlationInEventLog) {
+        this.blocklistCache = blocklistCache;
+        this.correlationWindow = correlationWindow;
+        this.rollingCounters = rollingCounters;
+        this.transactionRepository = transactionRepository;
+        this.transactionIds = transactionIds;
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+        this.file = file.isBlank() ? null : Path.of(file);
+        this.correlationInEventLog = correlationInEventLog;
+    }
+
+    /**
+     * The blocklists are loaded before the web server starts, like they were before snapshots.
+     */
+    @PostConstruct
+    void loadBlocklists() {
+        long start = System.nanoTime();
+        var snapshot = open();
+        if (!restore(snapshot, IPS, "suspicious IPs", blocklistCache::restoreIps)) blocklistCache.loadIps();
+        if (!restore(snapshot, CARDS, "stolen cards", blocklistCache::restoreCards)) blocklistCache.loadCards();
+        log.info("Blocklists loaded in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * The correlation window and rolling counters are loaded once the rules have set their windows.
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!correlationInEventLog) {
+            long start = System.nanoTime();
+            readOnlyTemplate.executeWithoutResult(status -> {
+                if (!restore(open(), CORRELATION, "correlation window", this::restoreCorrelation)) correlationWindow.warmUp();
+            });
+            log.info("Correlation window loaded in {} ms", (System.nanoTime() - start) / 1_000_000);
+        }
+        long start = System.nanoTime();
+        readOnlyTemplate.executeWithoutResult(status -> rollingCounters.warmUp());
+        log.info("Rolling counters loaded in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Scheduled(initialDelayString = "${antifraud.snapshot.interval:PT5M}", fixedDelayString = "${antifraud.snapshot.interval:PT5M}")
+    @PreDestroy
+    void write() {
+        if (file == null) return;
+        long start = System.nanoTime();
+        try (var writer = SnapshotFile.create(file)) {
+            writer.section(IPS, blocklistCache::writeIps);
+            writer.section(CARDS, blocklistCache::writeCards);
+            if (!correlationInEventLog) {
+                int lastId = transactionIds.last();
+                writer.section(CORRELATION, out -> {
+                    out.writeInt(lastId);
+                    correlationWindow.write(out);
+                });
+            }
+            writer.commit();
+            log.debug("Wrote state snapshot {} in {} ms", file, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write state snapshot {}", file, e);
+        }
+    }
+
+    private boolean restoreCorrelation(DataInputStream in) throws IOException {
+        int lastId = in.readInt();
+        // a table that lost transactions, e.g. restored from a backup, is loaded from scratch
+        if (lastId > transactionRepository.findTopByOrderByIdDesc().map(t -> t.id).orElse(0)) return false;
+        correlationWindow.read(in);
+        int[] caughtUp = new int[1];
+        try (var transactions = transactionRepository.streamByIdGreaterThanOrderById(Math.max(0, lastId - CATCH_UP_OVERLAP))) {
+            transactions.forEach(t -> {
+                correlationWindow.record(t);
+                caughtUp[0]++;
+            });
+        }
+        correlationWindow.evict();
+        log.info("Caught up the correlation window with {} transactions", caughtUp[0]);
+        return true;
+    }
+
+    private SnapshotFile.Reader open() {
+        if (file == null) return null;
+        try {
+            return SnapshotFile.open(file);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable state snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    private boolean restore(SnapshotFile.Reader snapshot, int tag, String name, Restorer restorer) {
+        if (snapshot == null) return false;
+        var section = snapshot.section(tag);
+        if (section.isEmpty()) return false;
+        try {
+            if (restorer.restore(section.get())) {
+                log.info("Restored the {} from {}", name, file);
+                return true;
+            }
+            log.info("The {} in {} are stale, loading from the database", name, file);
+        } catch (IOException e) {
+            log.warn("Ignoring the unreadable {} in {}", name, file, e);
+        }
+        return false;
+    }
+
+    private interface Restorer {
+        boolean restore(DataInputStream in) throws IOException;
+    }
+}
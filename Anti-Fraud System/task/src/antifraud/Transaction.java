@@ -1,13 +1,18 @@
 package antifraud;
 
 import jakarta.persistence.*;
+import org.springframework.data.domain.Persistable;
 
 import java.time.LocalDateTime;
 
 @Entity
-class Transaction {
+@Table(indexes = {
+        @Index(name = "transaction_number_date_idx", columnList = "number, date"),
+        @Index(name = "transaction_number_id_idx", columnList = "number, id"),
+        @Index(name = "transaction_date_idx", columnList = "date")
+})
+class Transaction implements Persistable<Integer> {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     int id;
     long amount;
     String ip;
@@ -20,11 +25,18 @@ class Transaction {
     TransactionResult result;
     @Enumerated(EnumType.STRING)
     TransactionResult feedback;
+    /**
+     * When the feedback was applied, in UTC; the card limits depend on the order feedback is applied in.
+     */
+    LocalDateTime feedbackDate;
+    @Transient
+    boolean persisted;
 
     public Transaction() {
     }
 
-    public Transaction(long amount, String ip, String number, Region region, LocalDateTime date, TransactionResult result) {
+    public Transaction(int id, long amount, String ip, String number, Region region, LocalDateTime date, TransactionResult result) {
+        this.id = id;
         this.amount = amount;
         this.ip = ip;
         this.number = number;
@@ -32,4 +44,20 @@ class Transaction {
         this.date = date;
         this.result = result;
     }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isNew() {
+        return !persisted;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        persisted = true;
+    }
 }
@@ -1,97 +1,223 @@
 package antifraud;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 
+/**
+ * Compiles the {@link Rule}s into checks. A set of rules is compiled once into a plan of closures over the
+ * rule parameters and swapped in atomically, so a transaction is always scored against one complete plan.
+ * Every rule reports its latency as {@code antifraud.rules.latency} and its non-ALLOWED results as
+ * {@code antifraud.rules.hits}, tagged with the rule name. The plan also holds the same checks uninstrumented and
+ * with uncounted blocklist lookups, for the {@link ScoringWarmUp}.
+ */
 @Component
 public class TransactionChecker {
-    private final IpRepository ipRepository;
-    private final CardRepository cardRepository;
+    private final BlocklistCache blocklistCache;
     private final TransactionRepository transactionRepository;
+    private final CardLimitRepository cardLimitRepository;
+    private final CorrelationWindow correlationWindow;
+    private final RollingCounters rollingCounters;
+    private final CardViews cardViews;
+    private final MeterRegistry registry;
+    private final ScoringState live = new LiveState(true);
+    private final ScoringState uncounted = new LiveState(false);
+    private final AtomicReference<Plan> plan = new AtomicReference<>(new Plan(List.of(), List.of(), CardLimit.Policy.DEFAULT));
 
-    TransactionChecker(IpRepository ipRepository, CardRepository cardRepository, TransactionRepository transactionRepository) {
-        this.ipRepository = ipRepository;
-        this.cardRepository = cardRepository;
+    TransactionChecker(BlocklistCache blocklistCache, TransactionRepository transactionRepository, CardLimitRepository cardLimitRepository, CorrelationWindow correlationWindow, RollingCounters rollingCounters, CardViews cardViews, MeterRegistry registry) {
+        this.blocklistCache = blocklistCache;
         this.transactionRepository = transactionRepository;
+        this.cardLimitRepository = cardLimitRepository;
+        this.correlationWindow = correlationWindow;
+        this.rollingCounters = rollingCounters;
+        this.cardViews = cardViews;
+        this.registry = registry;
     }
 
-    Map<Function<TransactionController.TransactionRequest, TransactionResult>, String> getChecks() {
-        return Map.of(
-                this::checkAmount, "amount",
-                this::checkIp, "ip",
-                this::checkCardNumber, "card-number",
-                this::checkRegionCorrelation, "region-correlation",
-                this::checkIpCorrelation, "ip-correlation"
-        );
+    List<Check> getChecks() {
+        return plan.get().checks();
     }
 
-    TransactionResult checkIp(TransactionController.TransactionRequest t) {
-        return ipRepository.existsByIp(t.ip()) ? TransactionResult.PROHIBITED : TransactionResult.ALLOWED;
+    /**
+     * The current checks without metrics, see {@link CheckPipeline#scoreUncounted}.
+     */
+    List<Check> getUncountedChecks() {
+        return plan.get().uncountedChecks();
     }
 
-    TransactionResult checkCardNumber(TransactionController.TransactionRequest t) {
-        return cardRepository.existsByNumber(t.number()) ? TransactionResult.PROHIBITED : TransactionResult.ALLOWED;
+    CardLimit.Policy cardLimitPolicy() {
+        return plan.get().cardLimitPolicy();
     }
 
-    TransactionResult checkRegionCorrelation(TransactionController.TransactionRequest t) {
-        var regions = transactionRepository.findDistinctRegionByRegionIsNotAndDateBetweenAndNumber(
-                t.region(), t.date().minusHours(1), t.date(), t.number());
-        if (regions.size() > 2) {
-            return TransactionResult.PROHIBITED;
-        } else if (regions.size() == 2) {
-            return TransactionResult.MANUAL_PROCESSING;
+    void install(List<Rule.Definition> rules) {
+        List<Check> checks = new ArrayList<>(rules.size());
+        List<Check> uncountedChecks = new ArrayList<>(rules.size());
+        Set<String> names = new HashSet<>();
+        var policy = CardLimit.Policy.DEFAULT;
+        var window = Duration.ZERO;
+        for (var rule : rules) {
+            checks.add(instrument(rule, compile(rule, live)));
+            uncountedChecks.add(new Check(rule.name(), blocking(rule), compile(rule, uncounted)));
+            names.add(rule.name());
+            if (rule.type() == RuleType.CARD_LIMIT) {
+                policy = new CardLimit.Policy(rule.manualAbove(), rule.prohibitedAbove(), rule.weight());
+            }
+            if ((rule.type() == RuleType.REGION_CORRELATION || rule.type() == RuleType.IP_CORRELATION) && rule.window().compareTo(window) > 0) {
+                window = rule.window();
+            }
         }
-        return TransactionResult.ALLOWED;
+        correlationWindow.retain(window);
+        rollingCounters.track(rules);
+        cardViews.usePolicy(policy);
+        plan.set(new Plan(List.copyOf(checks), List.copyOf(uncountedChecks), policy));
+        for (var meter : registry.find("antifraud.rules.latency").meters()) removeUnless(meter, names);
+        for (var meter : registry.find("antifraud.rules.hits").meters()) removeUnless(meter, names);
     }
 
-    TransactionResult checkIpCorrelation(TransactionController.TransactionRequest t) {
-        var ips = transactionRepository.findDistinctIpByIpIsNotAndDateBetweenAndNumber(
-                t.ip(), t.date().minusHours(1), t.date(), t.number());
-        if (ips.size() > 2) {
-            return TransactionResult.PROHIBITED;
-        } else if (ips.size() == 2) {
-            return TransactionResult.MANUAL_PROCESSING;
-        }
-        return TransactionResult.ALLOWED;
+    private void removeUnless(Meter meter, Set<String> names) {
+        if (!names.contains(meter.getId().getTag("rule"))) registry.remove(meter);
     }
 
-    TransactionResult checkAmount(TransactionController.TransactionRequest t) {
-        var previousTransactions = transactionRepository.findByNumberOrderById(t.number());
-        long allowedAmount = previousTransactions.stream().reduce(200L, this::processAllowedAmount, (a, b) -> {
-            throw new RuntimeException("Transaction processing can only occur in order");
-        });
-        long manualAmount = previousTransactions.stream().reduce(1500L, this::processManualAmount, (a, b) -> {
-            throw new RuntimeException("Transaction processing can only occur in order");
+    /**
+     * Compiles rules against another state, without metrics; used by the replay.
+     */
+    List<Check> compile(List<Rule.Definition> rules, ScoringState state) {
+        return rules.stream().map(rule -> new Check(rule.name(), () -> false, compile(rule, state))).toList();
+    }
+
+    private static Function<TransactionController.TransactionRequest, TransactionResult> compile(Rule.Definition rule, ScoringState state) {
+        long manualAbove = rule.manualAbove();
+        long prohibitedAbove = rule.prohibitedAbove();
+        var window = rule.window();
+        return switch (rule.type()) {
+            case IP_BLOCKLIST -> t -> state.isSuspiciousIp(t.ip()) ? TransactionResult.PROHIBITED : TransactionResult.ALLOWED;
+            case CARD_BLOCKLIST -> t -> state.isStolenCard(t.number()) ? TransactionResult.PROHIBITED : TransactionResult.ALLOWED;
+            case AMOUNT -> t -> result(t.amount(), manualAbove, prohibitedAbove);
+            case CARD_LIMIT -> t -> state.cardLimit(t.number())
+                    .map(limit -> result(t.amount(), limit.allowedAmount, limit.manualAmount))
+                    .orElseGet(() -> result(t.amount(), manualAbove, prohibitedAbove));
+            case REGION_CORRELATION -> t -> result(state.otherRegions(t.number(), t.region(), t.date().minus(window), t.date()), manualAbove, prohibitedAbove);
+            case IP_CORRELATION -> t -> result(state.otherIps(t.number(), t.ip(), t.date().minus(window), t.date()), manualAbove, prohibitedAbove);
+            case CARD_FREQUENCY -> t -> result(state.cardTotals(t.number(), window, t.date()).count() + 1, manualAbove, prohibitedAbove);
+            case CARD_VELOCITY -> t -> result(state.cardTotals(t.number(), window, t.date()).amount() + t.amount(), manualAbove, prohibitedAbove);
+            case IP_FREQUENCY -> t -> result(state.ipTransactions(t.ip(), window, t.date()) + 1, manualAbove, prohibitedAbove);
+            case REGION_FREQUENCY -> t -> result(state.regionTransactions(t.region(), window, t.date()) + 1, manualAbove, prohibitedAbove);
+        };
+    }
+
+    private Check instrument(Rule.Definition rule, Function<TransactionController.TransactionRequest, TransactionResult> evaluate) {
+        var latency = Timer.builder("antifraud.rules.latency").tag("rule", rule.name()).register(registry);
+        var manual = hits(rule, TransactionResult.MANUAL_PROCESSING);
+        var prohibited = hits(rule, TransactionResult.PROHIBITED);
+        return new Check(rule.name(), blocking(rule), t -> {
+            long start = System.nanoTime();
+            var result = evaluate.apply(t);
+            latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            switch (result) {
+                case MANUAL_PROCESSING -> manual.increment();
+                case PROHIBITED -> prohibited.increment();
+            }
+            return result;
         });
-        if (t.amount() > manualAmount) {
+    }
+
+    private BooleanSupplier blocking(Rule.Definition rule) {
+        // card limits are read from the database only until the card views are loaded
+        return rule.type() == RuleType.CARD_LIMIT ? () -> !cardViews.isReady() : () -> false;
+    }
+
+    private Counter hits(Rule.Definition rule, TransactionResult result) {
+        return Counter.builder("antifraud.rules.hits").tag("rule", rule.name()).tag("result", result.name()).register(registry);
+    }
+
+    private static TransactionResult result(long value, long manualAbove, long prohibitedAbove) {
+        if (value > prohibitedAbove) {
             return TransactionResult.PROHIBITED;
         }
-        if (t.amount() > allowedAmount) {
+        if (value > manualAbove) {
             return TransactionResult.MANUAL_PROCESSING;
         }
         return TransactionResult.ALLOWED;
     }
 
-    private long processAllowedAmount(long currentAmount, Transaction t) {
-        if (t.feedback == TransactionResult.ALLOWED) return adjustUp(currentAmount, t.amount);
-        if (t.feedback != null && t.result == TransactionResult.ALLOWED) return adjustDown(currentAmount, t.amount);
-        return currentAmount;
+    /**
+     * @param blocking whether the check may currently wait on the database, so the pipeline runs it off the request
+     *                 thread; asked once per transaction
+     */
+    record Check(String description, BooleanSupplier blocking, Function<TransactionController.TransactionRequest, TransactionResult> method) {
     }
 
-    private long processManualAmount(long currentAmount, Transaction t) {
-        if (t.feedback == TransactionResult.PROHIBITED) return adjustDown(currentAmount, t.amount);
-        if (t.feedback != null && t.result == TransactionResult.PROHIBITED) return adjustUp(currentAmount, t.amount);
-        return currentAmount;
+    private record Plan(List<Check> checks, List<Check> uncountedChecks, CardLimit.Policy cardLimitPolicy) {
     }
 
-    private long adjustUp(long oldAmount, long transactionAmount) {
-        return (long) Math.ceil(.8 * oldAmount + .2 * transactionAmount);
-    }
+    private class LiveState implements ScoringState {
+        private final boolean counted;
 
-    private long adjustDown(long oldAmount, long transactionAmount) {
-        return (long) Math.ceil(.8 * oldAmount - .2 * transactionAmount);
-    }
+        LiveState(boolean counted) {
+            this.counted = counted;
+        }
+
+        @Override
+        public boolean isSuspiciousIp(String ip) {
+            return blocklistCache.isSuspiciousIp(ip, counted);
+        }
+
+        @Override
+        public boolean isStolenCard(String number) {
+            return blocklistCache.isStolenCard(number, counted);
+        }
+
+        @Override
+        public Optional<CardLimit> cardLimit(String number) {
+            return cardViews.isReady() ? cardViews.cardLimit(number) : cardLimitRepository.findById(number);
+        }
+
+        @Override
+        public int otherRegions(String number, Region region, LocalDateTime from, LocalDateTime to) {
+            return correlationWindow.otherRegions(number, region, from, to).orElseGet(() ->
+                    transactionRepository.findDistinctRegionByRegionIsNotAndDateBetweenAndNumber(region, from, to, number).size());
+        }
+
+        @Override
+        public int otherIps(String number, String ip, LocalDateTime from, LocalDateTime to) {
+            return correlationWindow.otherIps(number, ip, from, to).orElseGet(() ->
+                    transactionRepository.findDistinctIpByIpIsNotAndDateBetweenAndNumber(ip, from, to, number).size());
+        }
+
+        @Override
+        public RollingCounters.Totals cardTotals(String number, Duration window, LocalDateTime date) {
+            return rollingCounters.totals(RollingCounters.Dimension.CARD, CardNumber.pack(number), window, date).orElseGet(() -> {
+                var amounts = transactionRepository.findAmountByNumberAndDateBetween(number, date.minus(window), date);
+                return new RollingCounters.Totals(amounts.size(), amounts.stream().mapToLong(TransactionRepository.AmountOnly::amount).sum());
+            });
+        }
 
+        @Override
+        public int ipTransactions(String ip, Duration window, LocalDateTime date) {
+            return rollingCounters.totals(RollingCounters.Dimension.IP, IPv4.pack(ip) & 0xffffffffL, window, date)
+                    .map(RollingCounters.Totals::count)
+                    .orElseGet(() -> (int) transactionRepository.countByIpAndDateBetween(ip, date.minus(window), date));
+        }
+
+        @Override
+        public int regionTransactions(Region region, Duration window, LocalDateTime date) {
+            return rollingCounters.totals(RollingCounters.Dimension.REGION, region.ordinal(), window, date)
+                    .map(RollingCounters.Totals::count)
+                    .orElseGet(() -> (int) transactionRepository.countByRegionAndDateBetween(region, date.minus(window), date));
+        }
+    }
 }
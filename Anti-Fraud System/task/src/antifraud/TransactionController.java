@@ -1,30 +1,82 @@
 package antifraud;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
+import jakarta.validation.Validator;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/api/antifraud")
 public class TransactionController {
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MISDIRECTED = 421;
 
     private final IpRepository ipRepository;
     private final CardRepository cardRepository;
     private final TransactionRepository transactionRepository;
+    private final CardLimitRepository cardLimitRepository;
     private final TransactionChecker transactionChecker;
+    private final CheckPipeline checkPipeline;
+    private final CardLanes cardLanes;
+    private final CorrelationWindow correlationWindow;
+    private final RollingCounters rollingCounters;
+    private final BlocklistCache blocklistCache;
+    private final TransactionIdAllocator transactionIds;
+    private final TransactionWriter transactionWriter;
+    private final Validator validator;
+    private final JsonArrayStreamer jsonArrayStreamer;
+    private final BlocklistTransfer blocklistTransfer;
+    private final CardViews cardViews;
+    private final Cluster cluster;
+    private final EntityManager entityManager;
 
-    TransactionController(IpRepository ipRepository, CardRepository cardRepository, TransactionRepository transactionRepository, TransactionChecker transactionChecker) {
+    TransactionController(IpRepository ipRepository, CardRepository cardRepository, TransactionRepository transactionRepository, CardLimitRepository cardLimitRepository, TransactionChecker transactionChecker, CheckPipeline checkPipeline, CardLanes cardLanes, CorrelationWindow correlationWindow, RollingCounters rollingCounters, BlocklistCache blocklistCache, TransactionIdAllocator transactionIds, TransactionWriter transactionWriter, Validator validator, JsonArrayStreamer jsonArrayStreamer, BlocklistTransfer blocklistTransfer, CardViews cardViews, Cluster cluster, EntityManager entityManager) {
         this.ipRepository = ipRepository;
         this.cardRepository = cardRepository;
         this.transactionRepository = transactionRepository;
+        this.cardLimitRepository = cardLimitRepository;
         this.transactionChecker = transactionChecker;
+        this.checkPipeline = checkPipeline;
+        this.cardLanes = cardLanes;
+        this.correlationWindow = correlationWindow;
+        this.rollingCounters = rollingCounters;
+        this.blocklistCache = blocklistCache;
+        this.transactionIds = transactionIds;
+        this.transactionWriter = transactionWriter;
+        this.validator = validator;
+        this.jsonArrayStreamer = jsonArrayStreamer;
+        this.blocklistTransfer = blocklistTransfer;
+        this.cardViews = cardViews;
+        this.cluster = cluster;
+        this.entityManager = entityManager;
     }
 
     @PostMapping("/transaction")
@@ -32,101 +84,336 @@ public class TransactionController {
         // switched to custom annotation in TransactionRequest
         //        if (!Card.IsValidLuhn(transaction.number)) throw new BadRequestException();
         if (!IP.verify(transaction.ip)) throw new BadRequestException();
-        List<String> manualInfos = new ArrayList<>();
-        List<String> prohibitedInfos = new ArrayList<>();
-
-        transactionChecker.getChecks().entrySet().forEach((check -> {
-            var method = check.getKey();
-            var description = check.getValue();
-            switch (method.apply(transaction)) {
-                case MANUAL_PROCESSING -> manualInfos.add(description);
-                case PROHIBITED -> prohibitedInfos.add(description);
+        int owner = cluster.owner(transaction.number);
+        if (owner != cluster.index()) return cluster.call(owner, "POST", "/transaction", transaction, TransactionResultResponse.class);
+        return score(transaction);
+    }
+
+    /**
+     * Scores a transaction forwarded by the node that received it, see {@link Cluster}.
+     */
+    @PostMapping("/internal/transaction")
+    TransactionResultResponse handleForwarded(@Valid @RequestBody TransactionRequest transaction) throws BadRequestException {
+        if (!IP.verify(transaction.ip)) throw new BadRequestException();
+        checkOwner(transaction.number);
+        return score(transaction);
+    }
+
+    private TransactionResultResponse score(TransactionRequest transaction) {
+        var verdict = cardLanes.run(transaction.number, () -> {
+            var v = checkPipeline.score(transaction);
+            var written = transactionWriter.write(toEntity(transaction, v));
+            correlationWindow.record(written);
+            rollingCounters.record(written);
+            cardViews.scored(written);
+            return v;
+        });
+        return new TransactionResultResponse(verdict.result(), verdict.info());
+    }
+
+    /**
+     * Scores the batch in one database transaction. In a partitioned {@link Cluster} the transactions of cards owned
+     * elsewhere are forwarded to their owners as batches of their own, so the batch is only atomic per node: when a
+     * node fails, the others may already have stored their part.
+     */
+    @PostMapping("/transaction/batch")
+    @Transactional
+    List<TransactionResultResponse> handleBatch(@RequestBody List<TransactionRequest> transactions) throws BadRequestException {
+        validate(transactions);
+        if (!cluster.isPartitioned()) return scoreBatch(transactions);
+        Map<Integer, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            positions.computeIfAbsent(cluster.owner(transactions.get(i).number), owner -> new ArrayList<>()).add(i);
+        }
+        Map<Integer, CompletableFuture<List<TransactionResultResponse>>> forwarded = new HashMap<>();
+        positions.forEach((owner, batch) -> {
+            if (owner != cluster.index()) {
+                forwarded.put(owner, cluster.callAsync(owner, "POST", "/transaction/batch", batch.stream().map(transactions::get).toList(), new TypeReference<>() {
+                }));
+            }
+        });
+        var local = positions.getOrDefault(cluster.index(), List.of());
+        var localResults = scoreBatch(local.stream().map(transactions::get).toList());
+        var results = new TransactionResultResponse[transactions.size()];
+        for (int i = 0; i < local.size(); i++) results[local.get(i)] = localResults.get(i);
+        for (var entry : forwarded.entrySet()) {
+            var batch = positions.get(entry.getKey());
+            var batchResults = Cluster.join(entry.getValue());
+            for (int i = 0; i < batch.size(); i++) results[batch.get(i)] = batchResults.get(i);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Scores a batch forwarded by the node that received it, see {@link #handleBatch}.
+     */
+    @PostMapping("/internal/transaction/batch")
+    @Transactional
+    List<TransactionResultResponse> handleForwardedBatch(@RequestBody List<TransactionRequest> transactions) throws BadRequestException {
+        validate(transactions);
+        for (var transaction : transactions) checkOwner(transaction.number);
+        return scoreBatch(transactions);
+    }
+
+    private void validate(List<TransactionRequest> transactions) throws BadRequestException {
+        for (var transaction : transactions) {
+            if (transaction == null || !validator.validate(transaction).isEmpty() || !IP.verify(transaction.ip)) {
+                throw new BadRequestException();
             }
-        }));
-
-        List<String> infos;
-        TransactionResult status;
-        if (!prohibitedInfos.isEmpty()) {
-            infos = prohibitedInfos;
-            status = TransactionResult.PROHIBITED;
-        } else if (!manualInfos.isEmpty()) {
-            infos = manualInfos;
-            status = TransactionResult.MANUAL_PROCESSING;
-        } else {
-            infos = List.of("none");
-            status = TransactionResult.ALLOWED;
         }
-        String info = infos.stream().sorted().collect(Collectors.joining(", "));
-        transactionRepository.save(new Transaction(
+    }
+
+    private List<TransactionResultResponse> scoreBatch(List<TransactionRequest> transactions) {
+        List<TransactionResultResponse> results = new ArrayList<>(transactions.size());
+        List<Transaction> scored = new ArrayList<>(transactions.size());
+        List<Integer> ids = new ArrayList<>(transactions.size());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                ids.forEach(transactionIds::release);
+                if (status == STATUS_COMMITTED) {
+                    scored.forEach(cardViews::scored);
+                } else {
+                    scored.forEach(correlationWindow::forget);
+                    scored.forEach(rollingCounters::forget);
+                }
+            }
+        });
+        for (var transaction : transactions) {
+            var verdict = cardLanes.run(transaction.number, () -> {
+                var v = checkPipeline.score(transaction);
+                // persisted in one JDBC batch on commit; correlation fallback queries auto-flush what they need
+                var entity = toEntity(transaction, v);
+                ids.add(entity.id);
+                entity = transactionRepository.save(entity);
+                correlationWindow.record(entity);
+                rollingCounters.record(entity);
+                scored.add(entity);
+                return v;
+            });
+            results.add(new TransactionResultResponse(verdict.result(), verdict.info()));
+        }
+        return results;
+    }
+
+    /**
+     * Rejects work for a card this node does not own, which only happens while the nodes disagree on the membership.
+     */
+    private void checkOwner(String number) {
+        if (!cluster.owns(number)) throw new ResponseStatusException(HttpStatusCode.valueOf(MISDIRECTED), "Card is owned by another node");
+    }
+
+    private Transaction toEntity(TransactionRequest transaction, CheckPipeline.Verdict verdict) {
+        return new Transaction(
+                transactionIds.next(),
                 transaction.amount,
                 transaction.ip,
                 transaction.number,
                 transaction.region,
                 transaction.date,
-                status
-        ));
-        return new TransactionResultResponse(status, info);
+                verdict.result()
+        );
     }
 
     @PostMapping("/suspicious-ip")
     IPResponse addIP(@Valid @RequestBody IPRequest request) throws ConflictException, BadRequestException {
-        if (ipRepository.existsByIp(request.ip)) throw new ConflictException();
-        if (!IP.verify(request.ip)) throw new BadRequestException();
-        var ip = new IP(request.ip);
-        return new IPResponse(ipRepository.save(ip));
+        var prefix = IPv4Prefix.parse(request.ip);
+        if (prefix == null) throw new BadRequestException();
+        if (ipRepository.existsByIp(prefix.toString())) throw new ConflictException();
+        var ip = ipRepository.save(new IP(prefix.toString()));
+        blocklistCache.addIp(ip.ip);
+        cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.IP, true, List.of(ip.ip)));
+        return new IPResponse(ip);
     }
 
     @DeleteMapping("/suspicious-ip/{ip}")
     IPDeletedResponse deleteIP(@PathVariable String ip) throws NotFoundException, BadRequestException {
-        if (!IP.verify(ip)) throw new BadRequestException();
+        return deleteIP(IPv4Prefix.parse(ip));
+    }
+
+    @DeleteMapping("/suspicious-ip/{ip}/{length}")
+    IPDeletedResponse deleteIPRange(@PathVariable String ip, @PathVariable String length) throws NotFoundException, BadRequestException {
+        return deleteIP(IPv4Prefix.parse(ip + "/" + length));
+    }
+
+    private IPDeletedResponse deleteIP(IPv4Prefix prefix) throws NotFoundException, BadRequestException {
+        if (prefix == null) throw new BadRequestException();
+        var ip = prefix.toString();
         ipRepository.delete(ipRepository.findByIp(ip).orElseThrow(NotFoundException::new));
+        blocklistCache.removeIp(ip);
+        cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.IP, false, List.of(ip)));
         return new IPDeletedResponse("IP %s successfully removed!".formatted(ip));
     }
 
     @GetMapping("/suspicious-ip")
-    Stream<IPResponse> listIP() {
-        return ipRepository.findByOrderById().stream().map(IPResponse::new);
+    ResponseEntity<StreamingResponseBody> listIP() {
+        return jsonArrayStreamer.stream(ipRepository::streamByOrderById, IPResponse::new);
+    }
+
+    @GetMapping(value = "/suspicious-ip", produces = {"text/csv", "application/x-ndjson"})
+    ResponseEntity<StreamingResponseBody> exportIP(@RequestHeader(HttpHeaders.ACCEPT) String accept) {
+        return blocklistTransfer.exportIps(exportFormat(accept));
+    }
+
+    @PostMapping(value = "/suspicious-ip/bulk", consumes = {"text/csv", "text/plain", "application/x-ndjson"})
+    BlocklistTransfer.ImportResult importIP(HttpServletRequest request) throws BadRequestException, IOException {
+        return blocklistTransfer.importIps(request.getInputStream(), MediaType.parseMediaType(request.getContentType()));
     }
 
     @PostMapping("/stolencard")
     CardResponse addCard(@Valid @RequestBody CardRequest request) throws ConflictException, BadRequestException {
         if (cardRepository.existsByNumber(request.number)) throw new ConflictException();
         if (!Card.IsValidLuhn(request.number)) throw new BadRequestException();
-        var card = new Card(request.number);
-        return new CardResponse(cardRepository.save(card));
+        var card = cardRepository.save(new Card(request.number));
+        blocklistCache.addCard(card.number);
+        cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.CARD, true, List.of(card.number)));
+        return new CardResponse(card);
     }
 
     @DeleteMapping("/stolencard/{number}")
     CardDeletedResponse deleteCard(@PathVariable String number) throws NotFoundException, BadRequestException {
         if (!Card.IsValidLuhn(number)) throw new BadRequestException();
         cardRepository.delete(cardRepository.findByNumber(number).orElseThrow(NotFoundException::new));
+        blocklistCache.removeCard(number);
+        cluster.broadcast("/blocklist", new ClusterController.BlocklistChange(ClusterController.Blocklist.CARD, false, List.of(number)));
         return new CardDeletedResponse("Card %s successfully removed!".formatted(number));
     }
 
     @GetMapping("/stolencard")
-    Stream<CardResponse> listCard() {
-        return cardRepository.findByOrderById().stream().map(CardResponse::new);
+    ResponseEntity<StreamingResponseBody> listCard() {
+        return jsonArrayStreamer.stream(cardRepository::streamByOrderById, CardResponse::new);
+    }
+
+    @GetMapping(value = "/stolencard", produces = {"text/csv", "application/x-ndjson"})
+    ResponseEntity<StreamingResponseBody> exportCard(@RequestHeader(HttpHeaders.ACCEPT) String accept) {
+        return blocklistTransfer.exportCards(exportFormat(accept));
+    }
+
+    @PostMapping(value = "/stolencard/bulk", consumes = {"text/csv", "text/plain", "application/x-ndjson"})
+    BlocklistTransfer.ImportResult importCard(HttpServletRequest request) throws BadRequestException, IOException {
+        return blocklistTransfer.importCards(request.getInputStream(), MediaType.parseMediaType(request.getContentType()));
+    }
+
+    private static MediaType exportFormat(String accept) {
+        for (var type : MediaType.parseMediaTypes(accept)) {
+            if (BlocklistTransfer.NDJSON.includes(type) && !type.isWildcardType()) return BlocklistTransfer.NDJSON;
+            if (BlocklistTransfer.TEXT_CSV.includes(type) && !type.isWildcardType()) return BlocklistTransfer.TEXT_CSV;
+        }
+        return BlocklistTransfer.TEXT_CSV;
     }
 
     @GetMapping("/history")
-    Stream<TransactionResponse> history() {
-        return transactionRepository.findByOrderById().stream().map(TransactionResponse::new);
+    ResponseEntity<StreamingResponseBody> history() {
+        return jsonArrayStreamer.stream(transactionRepository::streamByOrderById, TransactionResponse::new);
+    }
+
+    @GetMapping(value = "/history", params = "limit")
+    Stream<TransactionResponse> historyPage(@RequestParam(defaultValue = "0") int after, @RequestParam int limit) throws BadRequestException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) throw new BadRequestException();
+        return transactionRepository.findByIdGreaterThanAndIdLessThanOrderById(after, transactionIds.pageLimit(), Limit.of(limit)).stream().map(TransactionResponse::new);
     }
 
     @GetMapping("/history/{number}")
-    Stream<TransactionResponse> historyForNumber(@PathVariable String number) throws NotFoundException, BadRequestException {
+    ResponseEntity<StreamingResponseBody> historyForNumber(@PathVariable String number) throws NotFoundException, BadRequestException {
+        if (!Card.IsValidLuhn(number)) throw new BadRequestException();
+        if (!transactionRepository.existsByNumber(number)) throw new NotFoundException();
+        return jsonArrayStreamer.stream(() -> transactionRepository.streamByNumberOrderById(number), TransactionResponse::new);
+    }
+
+    @GetMapping(value = "/history/{number}", params = "limit")
+    Stream<TransactionResponse> historyPageForNumber(@PathVariable String number, @RequestParam(defaultValue = "0") int after, @RequestParam int limit) throws NotFoundException, BadRequestException {
         if (!Card.IsValidLuhn(number)) throw new BadRequestException();
-        var transactions = transactionRepository.findByNumberOrderById(number);
-        if (transactions.isEmpty()) throw new NotFoundException();
+        if (limit < 1 || limit > MAX_PAGE_SIZE) throw new BadRequestException();
+        var transactions = transactionRepository.findByNumberAndIdGreaterThanAndIdLessThanOrderById(number, after, transactionIds.pageLimit(), Limit.of(limit));
+        if (transactions.isEmpty() && !transactionRepository.existsByNumber(number)) throw new NotFoundException();
         return transactions.stream().map(TransactionResponse::new);
     }
 
+    /**
+     * Counts and current limits of a card, from the {@link CardViews} when the event log is enabled and the card is
+     * owned by this node.
+     */
+    @GetMapping("/history/{number}/summary")
+    CardSummaryResponse historySummary(@PathVariable String number) throws NotFoundException, BadRequestException {
+        if (!Card.IsValidLuhn(number)) throw new BadRequestException();
+        var policy = transactionChecker.cardLimitPolicy();
+        CardViews.CardView view;
+        if (cardViews.isReady() && cluster.owns(number)) {
+            view = cardViews.view(number).orElseThrow(NotFoundException::new);
+        } else {
+            if (!transactionRepository.existsByNumber(number)) throw new NotFoundException();
+            var limit = cardLimitRepository.findById(number);
+            view = new CardViews.CardView(
+                    (int) transactionRepository.countByNumberAndResult(number, TransactionResult.ALLOWED),
+                    (int) transactionRepository.countByNumberAndResult(number, TransactionResult.MANUAL_PROCESSING),
+                    (int) transactionRepository.countByNumberAndResult(number, TransactionResult.PROHIBITED),
+                    (int) transactionRepository.countByNumberAndFeedbackIsNotNull(number),
+                    limit.isPresent(), limit.map(l -> l.allowedAmount).orElse(0L), limit.map(l -> l.manualAmount).orElse(0L));
+        }
+        if (view.transactions() == 0) throw new NotFoundException();
+        return new CardSummaryResponse(number, view.transactions(), view.allowed(), view.manualProcessing(), view.prohibited(), view.withFeedback(),
+                view.limited() ? view.allowedAmount() : policy.initialAllowedAmount(),
+                view.limited() ? view.manualAmount() : policy.initialManualAmount());
+    }
+
+    /**
+     * Applies the feedback on the node owning the card. A transaction this node cannot find yet may still wait in the
+     * write-behind buffer of the node that scored it, so the other nodes are asked in turn.
+     */
     @PutMapping("/transaction")
+    @Transactional
     TransactionResponse feedback(@Valid @RequestBody FeedbackRequest feedback) throws NotFoundException, UnprocessableEntityException, ConflictException {
+        transactionWriter.flushIfPending(feedback.transactionId);
+        var transaction = transactionRepository.findById(feedback.transactionId);
+        if (transaction.isEmpty()) {
+            for (int node : cluster.peers()) {
+                try {
+                    return cluster.call(node, "PUT", "/transaction", feedback, TransactionResponse.class);
+                } catch (ResponseStatusException e) {
+                    // a node that is not the owner answers 421 when the transaction was stored meanwhile
+                    if (e.getStatusCode() != HttpStatus.NOT_FOUND && e.getStatusCode().value() != MISDIRECTED) throw e;
+                }
+            }
+            transaction = Optional.of(transactionRepository.findById(feedback.transactionId).orElseThrow(NotFoundException::new));
+        }
+        int owner = cluster.owner(transaction.get().number);
+        if (owner != cluster.index()) return cluster.call(owner, "PUT", "/transaction", feedback, TransactionResponse.class);
+        return applyFeedback(feedback, transaction.get());
+    }
+
+    /**
+     * Applies feedback forwarded by the node that received it, see {@link #feedback}.
+     */
+    @PutMapping("/internal/transaction")
+    @Transactional
+    TransactionResponse feedbackForwarded(@Valid @RequestBody FeedbackRequest feedback) throws NotFoundException, UnprocessableEntityException, ConflictException {
+        transactionWriter.flushIfPending(feedback.transactionId);
         var transaction = transactionRepository.findById(feedback.transactionId).orElseThrow(NotFoundException::new);
+        checkOwner(transaction.number);
+        return applyFeedback(feedback, transaction);
+    }
+
+    /**
+     * Checks the feedback against the transaction as re-read under the card's lane, and with its row locked against
+     * other instances sharing the database, so concurrent feedback on the same transaction is applied once.
+     */
+    private TransactionResponse applyFeedback(FeedbackRequest feedback, Transaction transaction) throws UnprocessableEntityException, ConflictException {
+        cardLanes.lockUntilCompletion(transaction.number);
+        entityManager.refresh(transaction, LockModeType.PESSIMISTIC_WRITE);
         if (feedback.feedback == transaction.result) throw new UnprocessableEntityException();
         if (transaction.feedback != null) throw new ConflictException();
         transaction.feedback = feedback.feedback;
+        transaction.feedbackDate = LocalDateTime.now(ZoneOffset.UTC);
+        var policy = transactionChecker.cardLimitPolicy();
+        var limit = cardLimitRepository.findById(transaction.number).orElseGet(() -> new CardLimit(transaction.number, policy));
+        limit.applyFeedback(transaction, policy);
+        cardLimitRepository.save(limit);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cardViews.feedback(transaction);
+            }
+        });
         return new TransactionResponse(transactionRepository.save(transaction));
     }
 
@@ -137,6 +424,10 @@ public class TransactionController {
     record TransactionResultResponse(TransactionResult result, String info) {
     }
 
+    record CardSummaryResponse(String number, int transactions, int allowed, int manualProcessing, int prohibited, int withFeedback,
+                               long allowedAmount, long manualAmount) {
+    }
+
     record TransactionResponse(int transactionId, long amount, String ip, String number, Region region,
                                LocalDateTime date, TransactionResult result, String feedback) {
         TransactionResponse(Transaction t) {
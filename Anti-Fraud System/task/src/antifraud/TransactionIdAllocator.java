@@ -0,0 +1,192 @@
+package antifraud;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out transaction ids in the application instead of relying on an identity column, so Hibernate
+ * can batch inserts and an id is known before the row is written. Ids are reserved in blocks of
+ * {@code antifraud.transaction-ids.block-size} from the {@link IdSequence} row, under a row lock, so instances
+ * sharing a database never hand out the same id; what is left of a block at shutdown is skipped.
+ * <p>
+ * The next block is reserved on a thread of its own as soon as the current one is taken into use, over a connection
+ * of its own outside the application's pool. Handing out an id never waits for the database under the lock, and a
+ * caller holding a pooled connection that does run out of ids waits for a reservation that needs no second one.
+ * <p>
+ * Ids are not stored in the order they are handed out: a batch or a write-behind flush commits after transactions
+ * with higher ids. Until its row is stored (or will never be) an id is outstanding, and pages of the history keyed
+ * by id end before the lowest outstanding id, see {@link #pageLimit}, so a client paging by id does not skip a row
+ * committed late. Only the ids of this instance are known; rows of other instances sharing the database can still
+ * appear behind a page already read.
+ */
+@Component
+class TransactionIdAllocator {
+    private static final String SEQUENCE = "transaction";
+    private static final int RESERVE_ATTEMPTS = 3;
+
+    private final TransactionRepository transactionRepository;
+    private final HikariDataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int blockSize;
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final ConcurrentSkipListSet<Integer> outstanding = new ConcurrentSkipListSet<>();
+    private final ExecutorService reserver = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "transaction-id-reserver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReentrantLock lock = new ReentrantLock();
+    private int next;
+    private int end;
+    private CompletableFuture<Integer> spare;
+    private String select;
+    private String insert;
+    private String update;
+
+    TransactionIdAllocator(TransactionRepository transactionRepository, DataSourceProperties dataSourceProperties,
+                           @Value("${antifraud.transaction-ids.block-size:1000}") int blockSize) {
+        this.transactionRepository = transactionRepository;
+        this.dataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        this.dataSource.setPoolName("transaction-id-reserver");
+        this.dataSource.setMaximumPoolSize(1);
+        this.dataSource.setMinimumIdle(0);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.blockSize = blockSize;
+    }
+
+    @PostConstruct
+    void init() {
+        lastId.set(transactionRepository.findTopByOrderByIdDesc().map(t -> t.id).orElse(0));
+        var q = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getIdentifierQuoteString().strip());
+        select = "select %1$snext_id%1$s from %1$sid_sequence%1$s where %1$sname%1$s = ? for update".formatted(q);
+        insert = "insert into %1$sid_sequence%1$s (%1$sname%1$s, %1$snext_id%1$s) select ?, coalesce(max(%1$sid%1$s), 0) + 1 + ? from %1$stransaction%1$s".formatted(q);
+        update = "update %1$sid_sequence%1$s set %1$snext_id%1$s = ? where %1$sname%1$s = ?".formatted(q);
+        lock.lock();
+        try {
+            spare = reserveAsync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        reserver.shutdownNow();
+        dataSource.close();
+    }
+
+    /**
+     * The highest id handed out by this instance or stored when it started.
+     */
+    int last() {
+        return lastId.get();
+    }
+
+    /**
+     * Hands out an id; the caller must {@link #release} it once the row is stored or given up.
+     */
+    int next() {
+        while (true) {
+            CompletableFuture<Integer> block;
+            lock.lock();
+            try {
+                if (next == end && spare.isDone() && !spare.isCompletedExceptionally()) {
+                    next = spare.join();
+                    end = next + blockSize;
+                    spare = reserveAsync();
+                }
+                if (next < end) {
+                    int id = next++;
+                    outstanding.add(id);
+                    lastId.accumulateAndGet(id, Math::max);
+                    return id;
+                }
+                block = spare;
+            } finally {
+                lock.unlock();
+            }
+            awaitSpare(block);
+        }
+    }
+
+    /**
+     * Waits outside the lock for the block being reserved; when the reservation failed, the next caller starts
+     * another and this one gets the failure.
+     */
+    private void awaitSpare(CompletableFuture<Integer> block) {
+        try {
+            Cluster.join(block);
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                if (spare == block) spare = reserveAsync();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    void release(int id) {
+        outstanding.remove(id);
+    }
+
+    /**
+     * @return an exclusive upper bound for pages keyed by id: the lowest outstanding id, or
+     * {@link Integer#MAX_VALUE} when none is
+     */
+    int pageLimit() {
+        var ids = outstanding.iterator();
+        return ids.hasNext() ? ids.next() : Integer.MAX_VALUE;
+    }
+
+    void advanceTo(int id) {
+        lastId.accumulateAndGet(id, Math::max);
+    }
+
+    private CompletableFuture<Integer> reserveAsync() {
+        return CompletableFuture.supplyAsync(this::reserve, reserver);
+    }
+
+    /**
+     * Reserves the next block in a transaction of its own and returns its first id. The row is created from the
+     * highest stored id the first time, with the first block taken; when two instances create it at once, one fails
+     * on the key and reads the other's row.
+     */
+    private int reserve() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> {
+                    var current = jdbcTemplate.queryForList(select, Integer.class, SEQUENCE);
+                    if (current.isEmpty()) {
+                        jdbcTemplate.update(insert, SEQUENCE, blockSize);
+                        return jdbcTemplate.queryForObject(select, Integer.class, SEQUENCE) - blockSize;
+                    }
+                    int start = current.get(0);
+                    jdbcTemplate.update(update, Math.addExact(start, blockSize), SEQUENCE);
+                    return start;
+                });
+            } catch (DataIntegrityViolationException e) {
+                if (attempt == RESERVE_ATTEMPTS) throw e;
+            }
+        }
+    }
+}
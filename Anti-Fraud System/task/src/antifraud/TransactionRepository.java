@@ -1,17 +1,47 @@
 package antifraud;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 interface TransactionRepository extends CrudRepository<Transaction, Integer> {
     List<RegionOnly> findDistinctRegionByRegionIsNotAndDateBetweenAndNumber(Region region, LocalDateTime dateFrom, LocalDateTime dateTo, String number);
     List<IpOnly> findDistinctIpByIpIsNotAndDateBetweenAndNumber(String ip, LocalDateTime dateFrom, LocalDateTime dateTo, String number);
+    List<AmountOnly> findAmountByNumberAndDateBetween(String number, LocalDateTime dateFrom, LocalDateTime dateTo);
+    long countByIpAndDateBetween(String ip, LocalDateTime dateFrom, LocalDateTime dateTo);
+    long countByRegionAndDateBetween(Region region, LocalDateTime dateFrom, LocalDateTime dateTo);
     List<Transaction> findByOrderById();
     List<Transaction> findByNumberOrderById(String number);
-}
+    boolean existsByNumber(String number);
+    long countByNumberAndResult(String number, TransactionResult result);
+    long countByNumberAndFeedbackIsNotNull(String number);
+    List<Transaction> findByIdGreaterThanAndIdLessThanOrderById(int after, int before, Limit limit);
+    List<Transaction> findByNumberAndIdGreaterThanAndIdLessThanOrderById(String number, int after, int before, Limit limit);
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<Transaction> streamByOrderById();
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<Transaction> streamByNumberOrderById(String number);
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<Transaction> streamByOrderByDateAscIdAsc();
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<Transaction> streamByIdGreaterThanOrderById(int id);
+    Optional<Transaction> findTopByOrderByIdDesc();
+    Optional<Transaction> findTopByOrderByDateDesc();
+    Stream<Transaction> streamByDateGreaterThanEqualOrderById(LocalDateTime date);
+    boolean existsByFeedbackIsNotNull();
+    Stream<Transaction> streamByFeedbackIsNotNullOrderByFeedbackDateAscIdAsc();
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<NumberOnly> streamNumberByFeedbackIsNotNull();
 
-record RegionOnly(Region region) {}
-record IpOnly(String ip) {}
\ No newline at end of file
+    record RegionOnly(Region region) {}
+    record IpOnly(String ip) {}
+    record AmountOnly(long amount) {}
+    record NumberOnly(String number) {}
+}
@@ -0,0 +1,15 @@
+package antifraud;
+
+/**
+ * Persists scored transactions. Either directly or, with {@code antifraud.write-behind.enabled=true},
+ * through the {@link WriteBehindTransactionWriter}.
+ */
+interface TransactionWriter {
+    Transaction write(Transaction transaction);
+
+    /**
+     * Blocks until the transaction with the given id is in the database, if it is still waiting to be written.
+     */
+    default void flushIfPending(int id) {
+    }
+}
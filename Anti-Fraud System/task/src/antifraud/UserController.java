@@ -17,9 +17,13 @@ import java.util.stream.Stream;
 @Validated
 public class UserController {
     private final UserRepository repository;
+    private final CredentialCache credentialCache;
+    private final Cluster cluster;
 
-    UserController(UserRepository repository) {
+    UserController(UserRepository repository, CredentialCache credentialCache, Cluster cluster) {
         this.repository = repository;
+        this.credentialCache = credentialCache;
+        this.cluster = cluster;
     }
 
     @Autowired
@@ -50,6 +54,7 @@ public class UserController {
     DeleteResponse deleteUser(@PathVariable String username) throws NotFoundException {
         var user = repository.findUserByUsername(username).orElseThrow(NotFoundException::new);
         repository.delete(user);
+        invalidate(user.username);
         return new DeleteResponse(user);
     }
 
@@ -65,7 +70,9 @@ public class UserController {
         }
         user.role = request.role();
 
-        return new UserResponse(repository.save(user));
+        var saved = repository.save(user);
+        invalidate(saved.username);
+        return new UserResponse(saved);
     }
 
     @PutMapping("access")
@@ -73,7 +80,17 @@ public class UserController {
         var user = repository.findUserByUsername(lockRequest.username()).orElseThrow(NotFoundException::new);
         if (user.role == Role.ADMINISTRATOR) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Administrator cannot be locked");
         user.locked = lockRequest.operation == LockOperation.LOCK;
-        return new LockResponse(repository.save(user));
+        var saved = repository.save(user);
+        invalidate(saved.username);
+        return new LockResponse(saved);
+    }
+
+    /**
+     * Drops the user's cached credentials here and on the other nodes, once the change is stored.
+     */
+    private void invalidate(String username) {
+        credentialCache.invalidate(username);
+        cluster.broadcast("/credentials", new ClusterController.CredentialChange(username));
     }
 
     record LockRequest(@NotNull String username, @NotNull LockOperation operation){}
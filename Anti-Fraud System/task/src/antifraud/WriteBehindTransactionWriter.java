@@ -0,0 +1,396 @@
+package antifraud;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Answers scoring requests before their transaction reaches the database. Every transaction is first appended to
+ * a memory-mapped log file, then a background thread inserts the pending ones in batches and advances the
+ * flushed offset kept in the file header. The log is circular: appends wrap around to its start, over the entries
+ * already flushed, and the slot after the newest entry is always cleared so recovery stops there.
+ * <p>
+ * On startup the entries from the flushed offset on are replayed into the database, so transactions accepted
+ * before a crash are not lost. When the flusher falls behind by the whole log, writers wait up to
+ * {@code antifraud.write-behind.max-wait} for it and are then rejected with 503.
+ * <p>
+ * A batch the database rejects for its data ({@link DataIntegrityViolationException}) is stored in halves down to
+ * single transactions; a transaction that still fails on its own is logged and appended as a JSON line to
+ * {@code antifraud.write-behind.dead-letter-file}, which the {@link ReplayRunner} reads, and the log drains on. Any
+ * other failure, such as a lost connection, is retried with pauses growing up to
+ * {@code antifraud.write-behind.max-backoff}, while the log fills and pushes back on writers.
+ */
+@Component
+@ConditionalOnProperty(name = "antifraud.write-behind.enabled", havingValue = "true")
+class WriteBehindTransactionWriter implements TransactionWriter {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindTransactionWriter.class);
+    private static final int HEADER = 16;
+    private static final int RECORD = 48;
+    private static final int CRC_OFFSET = RECORD - 4;
+    private static final int RECOVERY_CHUNK = 1000;
+    private static final Region[] REGIONS = Region.values();
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private final TransactionRepository transactionRepository;
+    private final TransactionIdAllocator transactionIds;
+    private final ObjectWriter deadLetterWriter;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final long maxWaitNanos;
+    private final boolean fsync;
+    private final long maxBackoffMillis;
+    private final Path deadLetterFile;
+    private final Counter deadLetters;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition flushedSome = lock.newCondition();
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final Set<Integer> pendingIds = new HashSet<>();
+    private final Timer flushTimer;
+    private final Thread flusher;
+    private int tail;
+    private int flushed;
+    private volatile boolean running = true;
+
+    WriteBehindTransactionWriter(TransactionRepository transactionRepository,
+                                 PlatformTransactionManager transactionManager,
+                                 TransactionIdAllocator transactionIds,
+                                 ObjectMapper objectMapper,
+                                 MeterRegistry registry,
+                                 Environment environment,
+                                 @Value("${antifraud.write-behind.log-file:transactions.log}") Path logFile,
+                                 @Value("${antifraud.write-behind.log-size:64MB}") DataSize logSize,
+                                 @Value("${antifraud.write-behind.batch-size:500}") int batchSize,
+                                 @Value("${antifraud.write-behind.flush-interval:PT0.05S}") Duration flushInterval,
+                                 @Value("${antifraud.write-behind.max-wait:PT1S}") Duration maxWait,
+                                 @Value("${antifraud.write-behind.fsync:false}") boolean fsync,
+                                 @Value("${antifraud.write-behind.max-backoff:PT30S}") Duration maxBackoff,
+                                 @Value("${antifraud.write-behind.dead-letter-file:transactions.dead}") Path deadLetterFile) throws IOException {
+        this.transactionRepository = transactionRepository;
+        this.transactionIds = transactionIds;
+        this.deadLetterWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.maxWaitNanos = maxWait.toNanos();
+        this.fsync = fsync;
+        this.maxBackoffMillis = maxBackoff.toMillis();
+        this.deadLetterFile = deadLetterFile;
+        this.deadLetters = Counter.builder("antifraud.write-behind.dead-letters").register(registry);
+        this.slots = (int) Math.min(logSize.toBytes() / RECORD, (Integer.MAX_VALUE - HEADER) / RECORD);
+        if (slots < 2) throw new IllegalStateException("antifraud.write-behind.log-size must hold at least 2 transactions");
+        this.capacity = HEADER + slots * RECORD;
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        recover(transactionIds);
+
+        Gauge.builder("antifraud.write-behind.queue.depth", pending, ArrayDeque::size).register(registry);
+        this.flushTimer = Timer.builder("antifraud.write-behind.flush").publishPercentileHistogram().register(registry);
+        this.flusher = Threading.VIRTUAL.isActive(environment)
+                ? new VirtualThreadTaskExecutor("write-behind-flusher-").getVirtualThreadFactory().newThread(this::flushLoop)
+                : new Thread(this::flushLoop, "write-behind-flusher");
+        this.flusher.start();
+        log.info("Write-behind log {} holds up to {} transactions", logFile.toAbsolutePath(), slots - 1);
+    }
+
+    private void recover(TransactionIdAllocator transactionIds) {
+        long start = buffer.getLong(0);
+        int position = start < HEADER || start >= capacity || (start - HEADER) % RECORD != 0 ? HEADER : (int) start;
+        List<Transaction> entries = new ArrayList<>();
+        while (entries.size() < slots - 1) {
+            var transaction = decode(position);
+            if (transaction == null) break;
+            entries.add(transaction);
+            position = next(position);
+        }
+        if (!entries.isEmpty()) {
+            var stored = new HashSet<Integer>();
+            for (int from = 0; from < entries.size(); from += RECOVERY_CHUNK) {
+                var ids = entries.subList(from, Math.min(from + RECOVERY_CHUNK, entries.size())).stream().map(t -> t.id).toList();
+                transactionRepository.findAllById(ids).forEach(t -> stored.add(t.id));
+            }
+            var missing = entries.stream().filter(t -> !stored.contains(t.id)).toList();
+            store(missing);
+            entries.forEach(t -> transactionIds.advanceTo(t.id));
+            log.info("Replayed {} transactions from the write-behind log", missing.size());
+        }
+        rewind();
+    }
+
+    @Override
+    public Transaction write(Transaction transaction) {
+        lock.lock();
+        try {
+            long nanos = maxWaitNanos;
+            // one slot stays free for the terminator
+            while (pending.size() >= slots - 1) {
+                if (nanos <= 0) {
+                    transactionIds.release(transaction.id);
+                    throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Write-behind log is full");
+                }
+                nanos = flushedSome.awaitNanos(nanos);
+            }
+            int position = tail;
+            encode(position, transaction);
+            tail = next(position);
+            // terminate the log after this entry, so recovery never reads entries left over from an earlier lap
+            buffer.putInt(tail + CRC_OFFSET, 0);
+            if (fsync) {
+                buffer.force(position, RECORD);
+                buffer.force(tail, RECORD);
+            }
+            pending.add(new Pending(transaction, tail));
+            pendingIds.add(transaction.id);
+            notEmpty.signal();
+            return transaction;
+        } catch (InterruptedException e) {
+            transactionIds.release(transaction.id);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flushIfPending(int id) {
+        lock.lock();
+        try {
+            long nanos = maxWaitNanos;
+            while (pendingIds.contains(id) && nanos > 0) {
+                nanos = flushedSome.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+            buffer.force();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushLoop() {
+        int failures = 0;
+        while (running || hasPending()) {
+            var batch = nextBatch();
+            if (batch.isEmpty()) continue;
+            var transactions = batch.stream().map(Pending::transaction).toList();
+            try {
+                flushTimer.record(() -> save(transactions));
+                failures = 0;
+            } catch (RuntimeException e) {
+                // left in the log on shutdown, to be replayed at the next start
+                if (!running) return;
+                try {
+                    if (!(e instanceof DataIntegrityViolationException)) throw e;
+                    log.warn("Flushing {} transactions was rejected, storing them in smaller batches", transactions.size(), e);
+                    store(transactions);
+                    failures = 0;
+                } catch (RuntimeException retry) {
+                    failures++;
+                    long pause = Math.min(maxBackoffMillis, 1000L << Math.min(failures - 1, 20));
+                    log.warn("Flushing {} transactions failed {} times, retrying in {} ms", transactions.size(), failures, pause, retry);
+                    try {
+                        Thread.sleep(pause);
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            lock.lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) pendingIds.remove(pending.poll().transaction.id);
+                transactions.forEach(t -> transactionIds.release(t.id));
+                flushed = batch.get(batch.size() - 1).end;
+                writeHeader();
+                flushedSome.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void save(List<Transaction> transactions) {
+        transactionTemplate.executeWithoutResult(status -> transactionRepository.saveAll(transactions));
+    }
+
+    /**
+     * Saves the transactions, splitting them in halves on a data error down to single ones, which are dead-lettered
+     * unless stored before; any other error is thrown, leaving the batch to be retried.
+     */
+    private void store(List<Transaction> transactions) {
+        try {
+            save(transactions);
+        } catch (DataIntegrityViolationException e) {
+            if (transactions.size() == 1) {
+                var transaction = transactions.get(0);
+                // a part of the batch may have been stored before a retried failure
+                if (!transactionRepository.existsById(transaction.id)) deadLetter(transaction, e);
+                return;
+            }
+            int half = transactions.size() / 2;
+            store(transactions.subList(0, half));
+            store(transactions.subList(half, transactions.size()));
+        }
+    }
+
+    private void deadLetter(Transaction transaction, RuntimeException cause) {
+        deadLetters.increment();
+        String json;
+        try {
+            json = deadLetterWriter.writeValueAsString(new TransactionController.TransactionResponse(transaction));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.error("Transaction {} cannot be stored, moving it to {}: {}", transaction.id, deadLetterFile, json, cause);
+        try (var writer = Files.newBufferedWriter(deadLetterFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(json);
+            writer.newLine();
+        } catch (IOException e) {
+            log.error("Could not write transaction {} to {}, it is only in this log", transaction.id, deadLetterFile, e);
+        }
+    }
+
+    private boolean hasPending() {
+        lock.lock();
+        try {
+            return !pending.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Pending> nextBatch() {
+        lock.lock();
+        try {
+            long nanos = flushIntervalNanos;
+            while (running && pending.size() < batchSize && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        lock.lock();
+        try {
+            return pending.stream().limit(batchSize).toList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int next(int position) {
+        position += RECORD;
+        return position == capacity ? HEADER : position;
+    }
+
+    private void rewind() {
+        tail = flushed = HEADER;
+        buffer.putInt(HEADER + CRC_OFFSET, 0);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putLong(0, flushed);
+        if (fsync) buffer.force(0, HEADER);
+    }
+
+    private void encode(int position, Transaction t) {
+        buffer.putInt(position, t.id);
+        buffer.putLong(position + 4, t.amount);
+        buffer.putInt(position + 12, IPv4.pack(t.ip));
+        buffer.putLong(position + 16, CardNumber.pack(t.number));
+        buffer.putLong(position + 24, t.date.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(position + 32, t.date.getNano());
+        buffer.put(position + 36, (byte) t.region.ordinal());
+        buffer.put(position + 37, (byte) t.result.ordinal());
+        buffer.putInt(position + CRC_OFFSET, crc(position));
+    }
+
+    private Transaction decode(int position) {
+        if (buffer.getInt(position + CRC_OFFSET) != crc(position)) return null;
+        return new Transaction(
+                buffer.getInt(position),
+                buffer.getLong(position + 4),
+                new IPv4(buffer.getInt(position + 12)).toString(),
+                CardNumber.unpack(buffer.getLong(position + 16)),
+                REGIONS[buffer.get(position + 36)],
+                LocalDateTime.ofEpochSecond(buffer.getLong(position + 24), buffer.getInt(position + 32), ZoneOffset.UTC),
+                RESULTS[buffer.get(position + 37)]);
+    }
+
+    private int crc(int position) {
+        var crc = new CRC32();
+        crc.update(buffer.slice(position, CRC_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    private record Pending(Transaction transaction, int end) {
+    }
+}
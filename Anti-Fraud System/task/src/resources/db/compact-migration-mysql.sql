@@ -0,0 +1,41 @@
+-- Converts the `transaction` table to the layout used by the "compact" profile.
+-- Run once with the application stopped, then start it with --spring.profiles.active=compact.
+-- Mirrors IPv4Converter, CardNumberConverter and EnumType.ORDINAL; ordinals follow the enum declaration order.
+
+ALTER TABLE `transaction`
+    ADD COLUMN `ip_packed` INT,
+    ADD COLUMN `number_unsigned` DECIMAL(21),
+    ADD COLUMN `number_packed` BIGINT,
+    ADD COLUMN `region_ordinal` TINYINT,
+    ADD COLUMN `result_ordinal` TINYINT,
+    ADD COLUMN `feedback_ordinal` TINYINT;
+
+UPDATE `transaction` SET
+    `ip_packed` = CAST(INET_ATON(`ip`) AS SIGNED) - IF(INET_ATON(`ip`) >= 2147483648, 4294967296, 0),
+    -- every number length gets its own range: offset = (10^length - 10) / 9, stored as a signed 64-bit value
+    `number_unsigned` = (CAST(POW(10, CHAR_LENGTH(`number`)) AS DECIMAL(21)) - 10) DIV 9 + CAST(`number` AS DECIMAL(21)),
+    -- single-table UPDATE assigns left to right, so this sees the value computed above
+    `number_packed` = CAST(`number_unsigned` - IF(`number_unsigned` >= 9223372036854775808, 18446744073709551616, 0) AS SIGNED),
+    `region_ordinal` = FIELD(`region`, 'EAP', 'ECA', 'HIC', 'LAC', 'MENA', 'SA', 'SSA') - 1,
+    `result_ordinal` = FIELD(`result`, 'ALLOWED', 'MANUAL_PROCESSING', 'PROHIBITED') - 1,
+    `feedback_ordinal` = NULLIF(FIELD(`feedback`, 'ALLOWED', 'MANUAL_PROCESSING', 'PROHIBITED'), 0) - 1;
+
+ALTER TABLE `transaction`
+    DROP INDEX `transaction_number_date_idx`,
+    DROP INDEX `transaction_number_id_idx`,
+    DROP COLUMN `number_unsigned`,
+    DROP COLUMN `ip`,
+    DROP COLUMN `number`,
+    DROP COLUMN `region`,
+    DROP COLUMN `result`,
+    DROP COLUMN `feedback`;
+
+ALTER TABLE `transaction`
+    RENAME COLUMN `ip_packed` TO `ip`,
+    RENAME COLUMN `number_packed` TO `number`,
+    RENAME COLUMN `region_ordinal` TO `region`,
+    RENAME COLUMN `result_ordinal` TO `result`,
+    RENAME COLUMN `feedback_ordinal` TO `feedback`;
+
+CREATE INDEX `transaction_number_date_idx` ON `transaction` (`number`, `date`);
+CREATE INDEX `transaction_number_id_idx` ON `transaction` (`number`, `id`);
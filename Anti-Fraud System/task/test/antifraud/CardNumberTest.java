@@ -0,0 +1,58 @@
+package antifraud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CardNumberTest {
+
+    @Test
+    void packsEveryNumberToItsOwnKey() {
+        var random = new Random(8);
+        Map<Long, String> seen = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            var number = digits(random, 1 + random.nextInt(CardNumber.MAX_LENGTH));
+            long packed = CardNumber.pack(number);
+            assertThat(packed).isNotEqualTo(CardNumber.INVALID);
+            assertThat(CardNumber.unpack(packed)).isEqualTo(number);
+            var previous = seen.putIfAbsent(packed, number);
+            if (previous != null) assertThat(previous).isEqualTo(number);
+        }
+    }
+
+    @Test
+    void keepsLeadingZerosApart() {
+        assertThat(CardNumber.pack("42")).isNotEqualTo(CardNumber.pack("042")).isNotEqualTo(CardNumber.pack("0042"));
+        assertThat(CardNumber.pack("0")).isNotEqualTo(CardNumber.pack("00"));
+        for (var number : new String[]{"0", "9", "00", "99", "0000000000000000000", "9999999999999999999", "4000008449433403"}) {
+            assertThat(CardNumber.unpack(CardNumber.pack(number))).isEqualTo(number);
+        }
+    }
+
+    @Test
+    void lengthsTakeConsecutiveRanges() {
+        // the largest number of each length packs just below the smallest of the next one
+        for (int length = 1; length < CardNumber.MAX_LENGTH; length++) {
+            assertThat(CardNumber.pack("9".repeat(length)) + 1).isEqualTo(CardNumber.pack("0".repeat(length + 1)));
+        }
+    }
+
+    @Test
+    void rejectsWhatIsNotADigitString() {
+        for (var number : new String[]{"", "12a4", "-1", " 1", "1".repeat(CardNumber.MAX_LENGTH + 1), "٣"}) {
+            assertThat(CardNumber.pack(number)).as(number).isEqualTo(CardNumber.INVALID);
+        }
+        assertThatThrownBy(() -> CardNumber.unpack(CardNumber.INVALID)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static String digits(Random random, int length) {
+        var number = new StringBuilder(length);
+        for (int i = 0; i < length; i++) number.append((char) ('0' + random.nextInt(10)));
+        return number.toString();
+    }
+}
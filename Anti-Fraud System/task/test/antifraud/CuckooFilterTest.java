@@ -0,0 +1,118 @@
+package antifraud;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CuckooFilterTest {
+
+    @Test
+    void neverLosesAKeyUnderRandomAddsAndRemoves() {
+        var random = new Random(2);
+        var filter = new CuckooFilter(10_000, 12);
+        List<Long> present = new ArrayList<>();
+        Set<Long> reference = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            if (!present.isEmpty() && (random.nextInt(3) == 0 || present.size() >= 9_000)) {
+                // only keys in the filter may be removed, anything else can drop another key
+                long key = present.remove(random.nextInt(present.size()));
+                reference.remove(key);
+                assertThat(filter.remove(key)).isTrue();
+            } else {
+                long key = random.nextLong();
+                if (!reference.add(key)) continue;
+                present.add(key);
+                assertThat(filter.add(key)).isTrue();
+            }
+            assertThat(filter.size()).isEqualTo(reference.size());
+        }
+        for (long key : reference) assertThat(filter.mightContain(key)).isTrue();
+    }
+
+    @Test
+    void falsePositivesStayNearTheConfiguredRate() {
+        var random = new Random(3);
+        int bits = CuckooFilter.fingerprintBits(0.001);
+        var filter = new CuckooFilter(20_000, bits);
+        Set<Long> reference = new HashSet<>();
+        while (reference.size() < 20_000) {
+            long key = random.nextLong();
+            if (reference.add(key)) assertThat(filter.add(key)).isTrue();
+        }
+        int falsePositives = 0;
+        int probes = 200_000;
+        for (int i = 0; i < probes; i++) {
+            long key = random.nextLong();
+            if (!reference.contains(key) && filter.mightContain(key)) falsePositives++;
+        }
+        assertThat((double) falsePositives / probes).isLessThan(0.002);
+    }
+
+    @Test
+    void fullFilterParksTheLastVictimAndTakesItBackOnRemoval() {
+        var random = new Random(4);
+        var filter = new CuckooFilter(64, 16);
+        List<Long> added = new ArrayList<>();
+        long key;
+        // the add that runs out of kicks still succeeds, it parks the evicted fingerprint
+        while (filter.add(key = random.nextLong())) added.add(key);
+        assertThat(added.size()).isGreaterThan(64);
+        assertThat(filter.size()).isEqualTo(added.size());
+        for (long k : added) assertThat(filter.mightContain(k)).isTrue();
+
+        // survives a snapshot with the victim parked
+        var restored = roundTrip(filter);
+        assertThat(restored.add(random.nextLong())).isFalse();
+        for (long k : added) assertThat(restored.mightContain(k)).isTrue();
+
+        // a removal from the victim's bucket, or of the victim itself, takes it back and the filter takes keys again
+        boolean accepted = false;
+        while (!accepted) {
+            long removed = added.remove(random.nextInt(added.size()));
+            assertThat(filter.remove(removed)).isTrue();
+            assertThat(filter.size()).isEqualTo(added.size());
+            for (long k : added) assertThat(filter.mightContain(k)).isTrue();
+            accepted = filter.add(key);
+        }
+        added.add(key);
+        for (long k : added) assertThat(filter.mightContain(k)).isTrue();
+    }
+
+    @Test
+    void snapshotKeepsKeysAndWidth() {
+        var random = new Random(5);
+        var filter = new CuckooFilter(1_000, 9);
+        List<Long> added = new ArrayList<>();
+        for (int i = 0; i < 900; i++) {
+            long key = random.nextLong();
+            assertThat(filter.add(key)).isTrue();
+            added.add(key);
+        }
+        var restored = roundTrip(filter);
+        assertThat(restored.fingerprintBits()).isEqualTo(9);
+        assertThat(restored.size()).isEqualTo(900);
+        assertThat(restored.bytes()).isEqualTo(filter.bytes());
+        for (long key : added) assertThat(restored.mightContain(key)).isTrue();
+    }
+
+    private static CuckooFilter roundTrip(CuckooFilter filter) {
+        try {
+            var bytes = new ByteArrayOutputStream();
+            filter.write(new DataOutputStream(bytes));
+            return CuckooFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
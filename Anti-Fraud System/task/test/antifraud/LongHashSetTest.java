@@ -0,0 +1,79 @@
+package antifraud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongHashSetTest {
+
+    @Test
+    void matchesHashSetUnderRandomAddsAndRemoves() {
+        var random = new Random(1);
+        var set = new LongHashSet();
+        Set<Long> reference = new HashSet<>();
+        for (int i = 0; i < 200_000; i++) {
+            // a small key range keeps the probe runs long and includes the empty key 0
+            long key = random.nextInt(5_000) - 10;
+            if (random.nextInt(3) == 0) {
+                assertThat(set.remove(key)).isEqualTo(reference.remove(key));
+            } else {
+                assertThat(set.add(key)).isEqualTo(reference.add(key));
+            }
+            if (i % 1000 == 0) assertSame(set, reference);
+        }
+        assertSame(set, reference);
+    }
+
+    @Test
+    void removeShiftsBackKeysOfTheSameProbeRun() {
+        var set = new LongHashSet();
+        Set<Long> reference = new HashSet<>();
+        // six keys hashing to slot 14 of the initial 16-slot table form one run that wraps around its end
+        long[] colliding = collidingKeys(14, 6);
+        for (long key : colliding) {
+            set.add(key);
+            reference.add(key);
+        }
+        for (int i : new int[]{2, 0, 4, 1, 5, 3}) {
+            assertThat(set.remove(colliding[i])).isTrue();
+            reference.remove(colliding[i]);
+            assertSame(set, reference);
+        }
+    }
+
+    @Test
+    void bytesFollowTheTableSize() {
+        var set = new LongHashSet();
+        for (long key = 1; key <= 1000; key++) {
+            set.add(key);
+            assertThat(set.bytes()).isEqualTo(LongHashSet.bytes(key));
+        }
+        assertThat(set.bytes()).isEqualTo(2048 * Long.BYTES);
+    }
+
+    /**
+     * Keys the set's hash puts in the given slot of a 16-slot table.
+     */
+    private static long[] collidingKeys(int slot, int n) {
+        var keys = new long[n];
+        int found = 0;
+        for (long key = 1; found < n; key++) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            if (((int) (h ^ (h >>> 32)) & 15) == slot) keys[found++] = key;
+        }
+        return keys;
+    }
+
+    private static void assertSame(LongHashSet set, Set<Long> reference) {
+        assertThat(set.size()).isEqualTo(reference.size());
+        Set<Long> contents = new HashSet<>();
+        set.forEach(contents::add);
+        assertThat(contents).isEqualTo(reference);
+        for (long key : reference) assertThat(set.contains(key)).isTrue();
+        for (long key = -10; key < 5_000; key += 7) assertThat(set.contains(key)).isEqualTo(reference.contains(key));
+    }
+}
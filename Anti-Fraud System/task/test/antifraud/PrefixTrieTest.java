@@ -0,0 +1,154 @@
+package antifraud;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefixTrieTest {
+
+    @Test
+    void matchesReferenceUnderRandomAddsAndRemoves() {
+        var random = new Random(6);
+        var trie = new PrefixTrie();
+        var reference = new Reference();
+        // prefixes crowd into a few /8s and /16s, so they nest and share trie paths and table slots
+        int[] bases = {0x0a000000, 0x0a010000, 0x0a01ff00, 0xc0a80000, 0xc0a80100, 0xffff0000};
+        for (int i = 0; i < 50_000; i++) {
+            int length = random.nextInt(4) == 0 ? random.nextInt(17) : 17 + random.nextInt(16);
+            int bits = (bases[random.nextInt(bases.length)] ^ (random.nextInt(1 << 12) << random.nextInt(20))) & IPv4Prefix.mask(length);
+            if (random.nextBoolean()) {
+                assertThat(trie.add(bits, length)).isEqualTo(reference.add(bits, length));
+            } else {
+                assertThat(trie.remove(bits, length)).isEqualTo(reference.remove(bits, length));
+            }
+            if (i % 500 == 0) assertSame(trie, reference, random, bases);
+        }
+        assertSame(trie, reference, random, bases);
+
+        // drain everything, so every branch node has to collapse
+        for (var prefix : reference.all()) {
+            assertThat(trie.remove(prefix[0], prefix[1])).isTrue();
+            reference.remove(prefix[0], prefix[1]);
+        }
+        assertSame(trie, reference, random, bases);
+        assertThat(trie.size()).isZero();
+    }
+
+    @Test
+    void removingOneSideOfABranchKeepsTheOther() {
+        var trie = new PrefixTrie();
+        int a = IPv4.pack("10.1.0.0");
+        int b = IPv4.pack("10.1.1.0");
+        int c = IPv4.pack("10.1.1.128");
+        trie.add(a, 24);
+        trie.add(b, 24);
+        trie.add(c, 25);
+        // 10.1.0.0/23 is only a branch node; dropping 10.1.0.0/24 collapses it into 10.1.1.0/24
+        assertThat(trie.remove(a, 24)).isTrue();
+        assertThat(trie.longestMatch(IPv4.pack("10.1.0.1"))).isEqualTo(-1);
+        assertThat(trie.longestMatch(IPv4.pack("10.1.1.1"))).isEqualTo(24);
+        assertThat(trie.longestMatch(IPv4.pack("10.1.1.200"))).isEqualTo(25);
+        assertThat(trie.remove(b, 24)).isTrue();
+        assertThat(trie.longestMatch(IPv4.pack("10.1.1.1"))).isEqualTo(-1);
+        assertThat(trie.longestMatch(IPv4.pack("10.1.1.200"))).isEqualTo(25);
+        assertThat(trie.contains(c, 25)).isTrue();
+        assertThat(trie.contains(b, 24)).isFalse();
+    }
+
+    @Test
+    void removingAShortPrefixRecomputesTheTableFromTheRemainingOnes() {
+        var trie = new PrefixTrie();
+        trie.add(IPv4.pack("10.0.0.0"), 8);
+        trie.add(IPv4.pack("10.0.0.0"), 12);
+        trie.add(IPv4.pack("10.4.0.0"), 16);
+        trie.add(IPv4.pack("10.4.1.0"), 24);
+        assertThat(trie.remove(IPv4.pack("10.0.0.0"), 12)).isTrue();
+        assertThat(trie.longestMatch(IPv4.pack("10.4.1.1"))).isEqualTo(24);
+        assertThat(trie.longestMatch(IPv4.pack("10.4.2.1"))).isEqualTo(16);
+        assertThat(trie.longestMatch(IPv4.pack("10.5.0.1"))).isEqualTo(8);
+        assertThat(trie.remove(IPv4.pack("10.4.0.0"), 16)).isTrue();
+        assertThat(trie.longestMatch(IPv4.pack("10.4.2.1"))).isEqualTo(8);
+        assertThat(trie.remove(IPv4.pack("10.0.0.0"), 8)).isTrue();
+        assertThat(trie.longestMatch(IPv4.pack("10.4.2.1"))).isEqualTo(-1);
+        assertThat(trie.longestMatch(IPv4.pack("10.4.1.1"))).isEqualTo(24);
+    }
+
+    @Test
+    void snapshotKeepsThePrefixes() throws IOException {
+        var random = new Random(7);
+        var trie = new PrefixTrie();
+        var reference = new Reference();
+        int[] bases = {0x0a000000, 0xc0a80000};
+        for (int i = 0; i < 2_000; i++) {
+            int length = random.nextInt(33);
+            int bits = (bases[random.nextInt(bases.length)] ^ random.nextInt(1 << 20)) & IPv4Prefix.mask(length);
+            trie.add(bits, length);
+            reference.add(bits, length);
+        }
+        var bytes = new ByteArrayOutputStream();
+        trie.write(new DataOutputStream(bytes));
+        var restored = new PrefixTrie();
+        restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSame(restored, reference, random, bases);
+    }
+
+    private static void assertSame(PrefixTrie trie, Reference reference, Random random, int[] bases) {
+        assertThat(trie.size()).isEqualTo(reference.size());
+        for (var prefix : reference.all()) {
+            assertThat(trie.contains(prefix[0], prefix[1])).isTrue();
+            // the first and last address of every prefix, and one next to each
+            int last = prefix[0] | ~IPv4Prefix.mask(prefix[1]);
+            for (int address : new int[]{prefix[0], prefix[0] - 1, last, last + 1}) {
+                assertThat(trie.longestMatch(address)).as("%08x", address).isEqualTo(reference.longestMatch(address));
+            }
+        }
+        for (int i = 0; i < 2_000; i++) {
+            int address = bases[random.nextInt(bases.length)] ^ random.nextInt(1 << 20);
+            assertThat(trie.longestMatch(address)).as("%08x", address).isEqualTo(reference.longestMatch(address));
+        }
+    }
+
+    /**
+     * Prefixes by length, each a sorted set of masked bits; a lookup tries every length from the longest.
+     */
+    private static class Reference {
+        private final TreeMap<Integer, TreeSet<Integer>> byLength = new TreeMap<>();
+
+        boolean add(int bits, int length) {
+            return byLength.computeIfAbsent(length, l -> new TreeSet<>()).add(bits);
+        }
+
+        boolean remove(int bits, int length) {
+            var set = byLength.get(length);
+            return set != null && set.remove(bits);
+        }
+
+        int size() {
+            return byLength.values().stream().mapToInt(TreeSet::size).sum();
+        }
+
+        List<int[]> all() {
+            List<int[]> all = new ArrayList<>();
+            byLength.forEach((length, set) -> set.forEach(bits -> all.add(new int[]{bits, length})));
+            return all;
+        }
+
+        int longestMatch(int address) {
+            for (var entry : byLength.descendingMap().entrySet()) {
+                if (entry.getValue().contains(address & IPv4Prefix.mask(entry.getKey()))) return entry.getKey();
+            }
+            return -1;
+        }
+    }
+}
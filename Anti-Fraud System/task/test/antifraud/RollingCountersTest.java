@@ -0,0 +1,100 @@
+package antifraud;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RollingCountersTest {
+    private static final int BUCKETS = 5;
+    private static final long BUCKET_NANOS = 10;
+
+    @Test
+    void ringMatchesReferenceWithLateAndForgottenTransactions() {
+        var random = new Random(9);
+        var window = new RollingCounters.Window(Duration.ofNanos(BUCKETS * BUCKET_NANOS), BUCKETS, Long.MIN_VALUE);
+        long key = 42;
+        List<long[]> recorded = new ArrayList<>();
+        long newest = 1_000;
+        window.add(key, newest, 1, 1);
+        recorded.add(new long[]{newest, 1});
+        long newestBucket = Math.floorDiv(newest, BUCKET_NANOS);
+        for (int i = 0; i < 100_000; i++) {
+            int action = random.nextInt(10);
+            if (action < 5) {
+                // mostly in order, sometimes late by up to a little more than the window, sometimes jumping ahead
+                long date = switch (random.nextInt(6)) {
+                    case 0 -> newest - random.nextInt((int) ((BUCKETS + 2) * BUCKET_NANOS));
+                    case 1 -> newest + random.nextInt((int) ((BUCKETS + 3) * BUCKET_NANOS));
+                    default -> newest + random.nextInt((int) BUCKET_NANOS);
+                };
+                long amount = 1 + random.nextInt(1000);
+                window.add(key, date, 1, amount);
+                recorded.add(new long[]{date, amount});
+                newest = Math.max(newest, date);
+            } else if (action < 6 && !recorded.isEmpty()) {
+                var t = recorded.remove(random.nextInt(recorded.size()));
+                window.add(key, t[0], -1, -t[1]);
+            } else {
+                long date = newest - random.nextInt((int) (3 * BUCKET_NANOS)) + random.nextInt((int) BUCKET_NANOS);
+                long bucket = Math.floorDiv(date, BUCKET_NANOS);
+                var totals = window.totals(key, date);
+                if (bucket < newestBucket - 1) {
+                    // reaches back before the ring holds the whole window
+                    assertThat(totals).isEmpty();
+                } else {
+                    assertThat(totals).as("window ending with bucket %d, newest %d", bucket, newestBucket)
+                            .contains(expected(recorded, bucket));
+                }
+                newest = Math.max(newest, date);
+            }
+            newestBucket = Math.max(newestBucket, Math.floorDiv(newest, BUCKET_NANOS));
+            // older transactions are outside every window still answered
+            long oldest = newestBucket - 1 - BUCKETS;
+            if (i % 100 == 0) recorded.removeIf(t -> Math.floorDiv(t[0], BUCKET_NANOS) <= oldest);
+        }
+    }
+
+    @Test
+    void lateTransactionCountsInItsOwnWindowOnly() {
+        var window = new RollingCounters.Window(Duration.ofNanos(BUCKETS * BUCKET_NANOS), BUCKETS, Long.MIN_VALUE);
+        window.add(1, 100, 1, 10);
+        window.add(1, 150, 1, 20);
+        // one bucket behind the newest: its window is buckets 10 to 14, so it still sees the transaction at 100
+        window.add(1, 145, 1, 5);
+        assertThat(window.totals(1, 145)).contains(new RollingCounters.Totals(2, 15));
+        assertThat(window.totals(1, 150)).contains(new RollingCounters.Totals(2, 25));
+        assertThat(window.totals(1, 199)).contains(new RollingCounters.Totals(1, 20));
+        assertThat(window.totals(1, 200)).contains(RollingCounters.Totals.NONE);
+        assertThat(window.totals(1, 145)).isEmpty();
+        assertThat(window.totals(2, 145)).contains(RollingCounters.Totals.NONE);
+    }
+
+    @Test
+    void windowReachingBeforeTheHorizonIsNotCovered() {
+        var window = new RollingCounters.Window(Duration.ofNanos(BUCKETS * BUCKET_NANOS), BUCKETS, 1_000);
+        window.add(1, 1_020, 1, 10);
+        assertThat(window.totals(1, 1_020)).isEmpty();
+        assertThat(window.totals(1, 1_050)).contains(new RollingCounters.Totals(1, 10));
+    }
+
+    /**
+     * The transactions in the {@code BUCKETS} buckets ending with {@code bucket}.
+     */
+    private static RollingCounters.Totals expected(List<long[]> recorded, long bucket) {
+        int count = 0;
+        long amount = 0;
+        for (var t : recorded) {
+            long b = Math.floorDiv(t[0], BUCKET_NANOS);
+            if (b > bucket - BUCKETS && b <= bucket) {
+                count++;
+                amount += t[1];
+            }
+        }
+        return new RollingCounters.Totals(count, amount);
+    }
+}
@@ -0,0 +1,119 @@
+package antifraud;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class WriteBehindTransactionWriterTest {
+    private static final int SLOTS = 3_000;
+    private static final Region[] REGIONS = Region.values();
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    @TempDir
+    Path dir;
+
+    /** The rows the fake database holds, by id. */
+    private final Map<Integer, Transaction> table = new ConcurrentHashMap<>();
+    private final List<Integer> saved = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> lookupSizes = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean databaseDown;
+
+    @Test
+    void replaysTheUnflushedEntriesOfAWrappedLog() throws IOException, InterruptedException {
+        var writer = writer(mock(TransactionIdAllocator.class));
+        for (int id = 1; id <= 2_500; id++) writer.write(transaction(id));
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (table.size() < 2_500 && System.nanoTime() < deadline) Thread.sleep(10);
+        assertThat(table).hasSize(2_500);
+
+        // with the database down the next entries stay in the log, which wraps around its end
+        databaseDown = true;
+        for (int id = 2_501; id <= 4_500; id++) writer.write(transaction(id));
+        writer.shutdown();
+        // as if a batch was stored just before the crash, without the flushed offset being advanced
+        for (int id = 2_501; id <= 2_600; id++) table.put(id, transaction(id));
+
+        databaseDown = false;
+        saved.clear();
+        var ids = mock(TransactionIdAllocator.class);
+        writer(ids).shutdown();
+
+        assertThat(saved).containsExactlyElementsOf(IntStream.rangeClosed(2_601, 4_500).boxed().toList());
+        assertThat(lookupSizes).containsExactly(1_000, 1_000);
+        verify(ids).advanceTo(4_500);
+        for (int id = 2_601; id <= 4_500; id++) assertSameTransaction(table.get(id), transaction(id));
+
+        // everything is stored, nothing is replayed a second time
+        saved.clear();
+        writer(mock(TransactionIdAllocator.class)).shutdown();
+        assertThat(saved).isEmpty();
+    }
+
+    @Test
+    void steadyLoadLapsASmallLog() throws IOException {
+        var writer = writer(mock(TransactionIdAllocator.class));
+        // several times the log's length, with the flusher keeping up
+        for (int id = 1; id <= 5 * SLOTS; id++) writer.write(transaction(id));
+        // shutting down drains the log
+        writer.shutdown();
+        assertThat(table).hasSize(5 * SLOTS);
+    }
+
+    private WriteBehindTransactionWriter writer(TransactionIdAllocator ids) throws IOException {
+        var repository = mock(TransactionRepository.class);
+        doAnswer(invocation -> {
+            if (databaseDown) throw new TransientDataAccessResourceException("Database is down");
+            Iterable<Transaction> batch = invocation.getArgument(0);
+            for (var t : batch) {
+                table.put(t.id, t);
+                saved.add(t.id);
+            }
+            return batch;
+        }).when(repository).saveAll(any());
+        doAnswer(invocation -> {
+            Iterable<Integer> requested = invocation.getArgument(0);
+            var found = StreamSupport.stream(requested.spliterator(), false).map(table::get).filter(Objects::nonNull).toList();
+            lookupSizes.add((int) StreamSupport.stream(requested.spliterator(), false).count());
+            return found;
+        }).when(repository).findAllById(any());
+        return new WriteBehindTransactionWriter(repository, mock(PlatformTransactionManager.class), ids, new ObjectMapper(),
+                new SimpleMeterRegistry(), new MockEnvironment(), dir.resolve("transactions.log"),
+                DataSize.ofBytes(SLOTS * 48L), 100, Duration.ofMillis(1), Duration.ofSeconds(5), false,
+                Duration.ofMillis(10), dir.resolve("transactions.dead"));
+    }
+
+    private static Transaction transaction(int id) {
+        return new Transaction(id, id * 7L, "10.%d.%d.%d".formatted(id >> 16 & 255, id >> 8 & 255, id & 255),
+                "4000%012d".formatted(id), REGIONS[id % REGIONS.length],
+                LocalDateTime.of(2022, 1, 1, 0, 0).plusSeconds(id).plusNanos(id * 1_000L), RESULTS[id % RESULTS.length]);
+    }
+
+    private static void assertSameTransaction(Transaction actual, Transaction expected) {
+        assertThat(actual).usingRecursiveComparison().comparingOnlyFields("id", "amount", "ip", "number", "region", "date", "result")
+                .isEqualTo(expected);
+    }
+}